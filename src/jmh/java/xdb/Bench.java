@@ -0,0 +1,20 @@
+package xdb;
+
+import java.io.File;
+
+/**
+ * Shared fixtures for the benchmarks.
+ */
+class Bench {
+  static final long EPOCH = 1470000000000L;
+
+  static void delete(File f) {
+    File[] children = f.listFiles();
+    if(children != null) {
+      for(File c : children)
+        delete(c);
+    }
+    f.delete();
+  }
+
+}
@@ -0,0 +1,84 @@
+package xdb;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import jetbrains.exodus.ByteIterable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key encoding (Event.get), key decoding (Event.getTS) and block
+ * seal/decode, the per-row work of every ingest flush and cursor scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GorillaCodecBench {
+  private static final int KEYS = 1024;
+
+  @Param({"100", "10000"})
+  int cardinality;
+
+  @Param({"120", "720"})
+  int points;
+
+  int[] sids;
+  long[] ts;
+  byte[][] keys;
+  GorillaBlock.Points window;
+  byte[] block;
+  GorillaBlock.Decoder decoder;
+  int next;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random rnd = new Random(42);
+    sids = new int[KEYS];
+    ts = new long[KEYS];
+    keys = new byte[KEYS][];
+    for(int i = 0; i < KEYS; i++) {
+      sids[i] = rnd.nextInt(cardinality);
+      ts[i] = Bench.EPOCH + rnd.nextInt(86400) * 1000L;
+      keys[i] = Gorilla.Event.put(new byte[Gorilla.Event.KEY_SIZE], sids[i], ts[i]);
+    }
+    window = new GorillaBlock.Points(points);
+    long step = GorillaBlock.WINDOW / points;
+    double v = 40;
+    for(int i = 0; i < points; i++) {
+      v += rnd.nextGaussian();
+      window.add(Bench.EPOCH + i*step + rnd.nextInt(50), v);
+    }
+    block = window.seal();
+    decoder = new GorillaBlock.Decoder();
+  }
+
+  @Benchmark
+  public ByteIterable encodeKey() {
+    int i = next++ & (KEYS - 1);
+    return Gorilla.Event.get(sids[i], ts[i]);
+  }
+
+  @Benchmark
+  public long decodeKey() {
+    byte[] key = keys[next++ & (KEYS - 1)];
+    return Gorilla.Event.getTS(key) ^ Gorilla.Event.getSeries(key);
+  }
+
+  @Benchmark
+  public byte[] sealBlock() {
+    return window.seal();
+  }
+
+  @Benchmark
+  public void decodeBlock(Blackhole bh) {
+    decoder.reset(block, 0);
+    while(decoder.next()) {
+      bh.consume(decoder.ts());
+      bh.consume(decoder.val());
+    }
+  }
+
+}
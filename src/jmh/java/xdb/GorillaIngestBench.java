@@ -0,0 +1,72 @@
+package xdb;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point ingest through the shard head, the path WriteTask drives. Every
+ * invocation appends one batch round robin over the series; crossing a
+ * window boundary flushes the closed windows into the partitions, so the
+ * flush cost is amortized into the score the way it is in production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GorillaIngestBench {
+
+  @Param({"100", "10000"})
+  int cardinality;
+
+  @Param({"1", "100", "1000"})
+  int batch;
+
+  File dir;
+  Gorilla.Shard shard;
+  GorillaHead head;
+  int[] sids;
+  int next;
+  long ts;
+  long window;
+  double val;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("gorilla-ingest").toFile();
+    shard = new Gorilla.Shard(dir.getPath(), 0);
+    head = shard.getHead();
+    sids = new int[cardinality];
+    for(int i = 0; i < cardinality; i++)
+      sids[i] = shard.getDict().getOrCreate("bench|machine" + i + "|CPU");
+    ts = Bench.EPOCH;
+    window = GorillaBlock.window(ts);
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    shard.close();
+    Bench.delete(dir);
+  }
+
+  @Benchmark
+  public void append() {
+    for(int i = 0; i < batch; i++) {
+      head.append(sids[next], ts, val);
+      val += 0.5;
+      if(++next == cardinality) {
+        next = 0;
+        ts += 10000;
+        long w = GorillaBlock.window(ts);
+        if(w != window) {
+          head.flush(shard.getPartitions(), w, Long.MIN_VALUE, 10000);
+          window = w;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,80 @@
+package xdb;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Series range scans against a shard loaded with two days of one minute
+ * points per series, all flushed to the partitions. Scans pick series
+ * round robin so the cost is not one hot block in cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GorillaScanBench {
+  private static final long DAYS = 2;
+  private static final long STEP = 60000;
+
+  @Param({"100", "1000"})
+  int cardinality;
+
+  @Param({"3600000", "86400000"})
+  long span;
+
+  File dir;
+  Gorilla.Shard shard;
+  String[] series;
+  int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("gorilla-scan").toFile();
+    shard = new Gorilla.Shard(dir.getPath(), 0);
+    series = new String[cardinality];
+    int[] sids = new int[cardinality];
+    for(int i = 0; i < cardinality; i++) {
+      series[i] = "bench|machine" + i + "|CPU";
+      sids[i] = shard.getDict().getOrCreate(series[i]);
+    }
+    GorillaHead head = shard.getHead();
+    long end = Bench.EPOCH + DAYS*GorillaPartitions.SPAN;
+    for(long t = Bench.EPOCH; t < end; t += STEP) {
+      for(int i = 0; i < cardinality; i++)
+        head.append(sids[i], t, i + (t % 7));
+    }
+    head.flushAll(shard.getPartitions());
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    shard.close();
+    Bench.delete(dir);
+  }
+
+  private String series() {
+    String s = series[next];
+    next = (next + 1) % series.length;
+    return s;
+  }
+
+  @Benchmark
+  public long forward(Blackhole bh) {
+    long from = Bench.EPOCH + GorillaPartitions.SPAN - span/2;
+    return shard.read(series(), from, from + span, (ts, val) -> bh.consume(val));
+  }
+
+  @Benchmark
+  public long latest() {
+    long to = Bench.EPOCH + DAYS*GorillaPartitions.SPAN;
+    try (GorillaRange range = shard.range(series(), to - span, to, true)) {
+      return range.next() ? range.ts() : -1;
+    }
+  }
+
+}
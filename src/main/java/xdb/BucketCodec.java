@@ -0,0 +1,75 @@
+package xdb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Key layout [bucket][timestamp][id] for time series tables. The bucket is
+ * a big-endian prefix of prefixLen bytes (none when prefixLen is 0) that
+ * spreads concurrent writers over separate key ranges; the timestamp is a
+ * big-endian 8-byte millisecond value, so rows of one bucket sort by time
+ * and a time range of a bucket is one contiguous key range.
+ */
+public class BucketCodec {
+  public final int prefixLen;
+  public final int buckets;
+
+  public BucketCodec(int prefixLen, int buckets) {
+    if(prefixLen < 0 || prefixLen > 4 || (prefixLen < 4 && buckets > (1 << (8*prefixLen))))
+      throw new IllegalArgumentException(buckets + " buckets do not fit in " + prefixLen + " bytes");
+    this.prefixLen = prefixLen;
+    this.buckets = buckets;
+  }
+
+  /**
+   * A single bucket and no prefix: plain time-first keys.
+   */
+  public static BucketCodec none() {
+    return new BucketCodec(0, 1);
+  }
+
+  public byte[] prefix(int bucket) {
+    byte[] p = new byte[prefixLen];
+    for(int i = prefixLen - 1; i >= 0; i--) {
+      p[i] = (byte)bucket;
+      bucket >>>= 8;
+    }
+    return p;
+  }
+
+  /**
+   * The smallest key of the bucket at the timestamp, for seeking.
+   */
+  public byte[] key(int bucket, long ts) {
+    return ByteBuffer.allocate(prefixLen + 8).put(prefix(bucket)).putLong(ts).array();
+  }
+
+  public byte[] encode(int bucket, long ts, long id) {
+    return ByteBuffer.allocate(prefixLen + 16).put(prefix(bucket)).putLong(ts).putLong(id).array();
+  }
+
+  public int bucket(byte[] key) {
+    int b = 0;
+    for(int i = 0; i < prefixLen; i++)
+      b = (b << 8) | (key[i] & 0xFF);
+    return b;
+  }
+
+  public long ts(byte[] key) {
+    return ByteBuffer.wrap(key, prefixLen, 8).getLong();
+  }
+
+  public boolean inBucket(byte[] key, int bucket) {
+    return key.length >= prefixLen + 8 && bucket(key) == bucket;
+  }
+
+  static int compare(byte[] a, byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for(int i = 0; i < n; i++) {
+      int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if(c != 0)
+        return c;
+    }
+    return a.length - b.length;
+  }
+
+}
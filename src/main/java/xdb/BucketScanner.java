@@ -0,0 +1,93 @@
+package xdb;
+
+import com.wiredtiger.db.*;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Reads the buckets of a tiered table in parallel. The buckets are split
+ * into one contiguous run per worker; every worker reads its run on its own
+ * session and cursors into a private accumulator, and the accumulators are
+ * combined once all workers are done.
+ */
+public class BucketScanner implements AutoCloseable {
+  private static Logger log = LogManager.getLogger(BucketScanner.class);
+
+  private final Connection conn;
+  private final int threads;
+  private final ExecutorService pool;
+
+  public interface RowFolder<A> {
+    void accept(A acc, byte[] key, byte[] val);
+  }
+
+  public BucketScanner(Connection conn, int threads) {
+    this.conn = conn;
+    this.threads = threads;
+    this.pool = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * Folds every row with a timestamp in [from, to] from both tiers. Each
+   * worker begins its transaction with txnConfig, e.g. a shared named
+   * snapshot when the workers must see the same point in time.
+   */
+  public <A> A scan(TierManager tier, long from, long to, String txnConfig,
+                    Supplier<A> supplier, RowFolder<A> folder, BinaryOperator<A> combiner) {
+    int buckets = tier.codec().buckets;
+    int n = Math.min(threads, buckets);
+    List<Future<A>> parts = new ArrayList<Future<A>>(n);
+    for(int w = 0; w < n; w++) {
+      final int lo = buckets * w / n;
+      final int hi = buckets * (w + 1) / n;
+      parts.add(pool.submit(() -> {
+            A acc = supplier.get();
+            Session session = conn.open_session(null);
+            try {
+              session.begin_transaction(txnConfig);
+              try {
+                for(int b = lo; b < hi; b++)
+                  tier.scan(session, b, from, to, (key, val) -> folder.accept(acc, key, val));
+              } finally {
+                session.rollback_transaction(null);
+              }
+            } finally {
+              session.close(null);
+            }
+            return acc;
+          }));
+    }
+    A ret = null;
+    try {
+      for(Future<A> f : parts) {
+        A acc = f.get();
+        ret = ret == null ? acc : combiner.apply(ret, acc);
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch(ExecutionException e) {
+      // rethrown as is, so callers can catch WiredTigerRollbackException
+      if(e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+      throw new RuntimeException(e.getCause());
+    } finally {
+      for(Future<A> f : parts)
+        f.cancel(false);
+    }
+    return ret == null ? supplier.get() : ret;
+  }
+
+  public void close() {
+    pool.shutdown();
+    try {
+      pool.awaitTermination(10, TimeUnit.SECONDS);
+    } catch(InterruptedException e) {
+      log.info(e);
+    }
+  }
+
+}
@@ -0,0 +1,68 @@
+package xdb;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.io.File;
+import java.util.*;
+
+/**
+ * The WiredTiger compressor extensions that exist on disk. Libraries are
+ * looked up as libwiredtiger_<name>.so or .dylib in the directory named by
+ * the wiredtiger.extensions system property, "libs" by default. Missing
+ * compressors are left out of the connection config, so the connection
+ * still opens and tables fall back to no compression.
+ */
+public class Extensions {
+  private static Logger log = LogManager.getLogger(Extensions.class);
+
+  private static final String[] SUFFIXES = {".so", ".dylib"};
+
+  private final List<String> compressors;
+  private final List<String> paths;
+
+  public Extensions(String... compressors) {
+    String dir = System.getProperty("wiredtiger.extensions", "libs");
+    this.compressors = new ArrayList<String>();
+    this.paths = new ArrayList<String>();
+    for(String c : compressors) {
+      String path = null;
+      for(String suffix : SUFFIXES) {
+        File f = new File(dir, "libwiredtiger_" + c + suffix);
+        if(f.isFile()) {
+          path = f.getAbsolutePath();
+          break;
+        }
+      }
+      if(path == null) {
+        log.info("no {} compressor in {}", c, dir);
+        continue;
+      }
+      this.compressors.add(c);
+      this.paths.add(path);
+    }
+  }
+
+  /**
+   * The compressors whose library was found.
+   */
+  public String[] compressors() {
+    return compressors.toArray(new String[0]);
+  }
+
+  /**
+   * ",extensions=[...]" to append to a connection config, empty when no
+   * library was found.
+   */
+  public String config() {
+    if(paths.isEmpty())
+      return "";
+    StringBuilder sb = new StringBuilder(",extensions=[");
+    for(int i = 0; i < paths.size(); i++) {
+      if(i > 0)
+        sb.append(',');
+      sb.append('"').append(paths.get(i)).append('"');
+    }
+    return sb.append(']').toString();
+  }
+
+}
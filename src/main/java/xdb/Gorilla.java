@@ -24,45 +24,64 @@ public class Gorilla {
   private static Logger log = LogManager.getLogger(Gorilla.class);
 
   public static class Event {
-    String key;
+    public static final int KEY_SIZE = 12;
+    int sid;
     double val;
     long ts;
 
-    public static ByteIterable get(String key) {
-      return stringToEntry(key);
+    public static ByteIterable get(int sid) {
+      return get(sid, Long.MIN_VALUE);
     }
 
-    public static ByteIterable get(String key, long ts) {
-      ByteIterable[] segs = new ByteIterable[2];
-      segs[0] = stringToEntry(key);
-      segs[1] = longToEntry(ts);
-      return new CompoundByteIterable(segs);
+    public static ByteIterable get(int sid, long ts) {
+      return new ArrayByteIterable(put(new byte[KEY_SIZE], sid, ts));
     }
 
-    public static String getKey(ByteIterable key) {
-      byte[] bytes = key.getBytesUnsafe();
-      return entryToString(key);
+    static byte[] put(byte[] b, int sid, long ts) {
+      int s = sid ^ 0x80000000;
+      b[0] = (byte)(s >>> 24);
+      b[1] = (byte)(s >>> 16);
+      b[2] = (byte)(s >>> 8);
+      b[3] = (byte)s;
+      long t = ts ^ 0x8000000000000000L;
+      for(int i = 11; i >= 4; i--) {
+        b[i] = (byte)t;
+        t >>>= 8;
+      }
+      return b;
+    }
+
+    public static int getSeries(ByteIterable key) {
+      return getSeries(key.getBytesUnsafe());
+    }
+
+    static int getSeries(byte[] b) {
+      return (((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF)) ^ 0x80000000;
     }
 
     public static long getTS(ByteIterable key) {
-      byte[] bytes = key.getBytesUnsafe();
-      byte[] d = new byte[8];
-      System.arraycopy(bytes, key.getLength()-8, d, 0, 8);
-      return entryToLong(new ArrayByteIterable(d));
+      return getTS(key.getBytesUnsafe());
+    }
+
+    static long getTS(byte[] b) {
+      long t = 0;
+      for(int i = 4; i < KEY_SIZE; i++)
+        t = (t << 8) | (b[i] & 0xFF);
+      return t ^ 0x8000000000000000L;
     }
 
-    public Event(String key, double val, long ts) {
-      this.key = key;
+    public Event(int sid, double val, long ts) {
+      this.sid = sid;
       this.val = val;
       this.ts = ts;
     }
 
     public String toString() {
-      return key + ";val=" + val + ";ts=" + ts;
+      return sid + ";val=" + val + ";ts=" + ts;
     }
 
     public ByteIterable getKey() {
-      return get(key, ts);
+      return get(sid, ts);
     }
 
     public ByteIterable getValue() {
@@ -71,12 +90,82 @@ public class Gorilla {
 
   }
 
+  /**
+   * Reusable flyweight over the current cursor row. Series id and window are
+   * decoded straight from the key bytes and the block is decoded in place,
+   * so a scan allocates nothing per row. Seek keys reuse one buffer too.
+   */
+  public static class EventView {
+    private final byte[] seek;
+    private final ArrayByteIterable seekKey;
+    private final GorillaBlock.Decoder decoder;
+    private Cursor cursor;
+    private byte[] key;
+
+    public EventView() {
+      seek = new byte[Event.KEY_SIZE];
+      seekKey = new ArrayByteIterable(seek);
+      decoder = new GorillaBlock.Decoder();
+    }
+
+    public EventView wrap(Cursor cursor) {
+      this.cursor = cursor;
+      this.key = null;
+      return this;
+    }
+
+    public boolean seek(int sid, long ts) {
+      Event.put(seek, sid, ts);
+      key = null;
+      return cursor.getSearchKeyRange(seekKey) != null;
+    }
+
+    private byte[] key() {
+      if(key == null)
+        key = cursor.getKey().getBytesUnsafe();
+      return key;
+    }
+
+    public boolean next() {
+      key = null;
+      return cursor.getNext();
+    }
+
+    public boolean prev() {
+      key = null;
+      return cursor.getPrev();
+    }
+
+    public boolean last() {
+      key = null;
+      return cursor.getLast();
+    }
+
+    public int sid() {
+      return Event.getSeries(key());
+    }
+
+    public long window() {
+      return Event.getTS(key());
+    }
+
+    /**
+     * Positions the block decoder on the current row's value.
+     */
+    public GorillaBlock.Decoder block() {
+      return decoder.reset(cursor.getValue().getBytesUnsafe(), 0);
+    }
+  }
+
   public static class DataGeneratorTask implements Runnable {
-    private static String[] streams = new String[]{"%s|%s|CPU", "%s|%s|MEM"};
+    private static String[] streams = new String[]{"CPU", "MEM"};
+    private static final int prefixes = 5;
+    private static final int machines = 1000;
     private String[] keys;
+    private int[] sids;
     private LinkedBlockingQueue<Event> evtsq;
     private int cap;
-    private Random rnd;
+    private Workload workload;
     private Shard shard;
     private boolean stop;
 
@@ -84,7 +173,11 @@ public class Gorilla {
       this.shard = shard;
       this.evtsq = new LinkedBlockingQueue<Event>();
       this.cap = 1000000;
-      this.rnd = new Random(this.hashCode());
+      this.keys = new String[streams.length*prefixes*machines];
+      this.sids = new int[keys.length];
+      // timestamps run 100 points per ms from now, up to 5s out of order
+      this.workload = new Workload(shard.id, keys.length).timeline(Instant.now().toEpochMilli(), 100, 5000);
+      Arrays.fill(sids, -1);
       stop = false;
     }
 
@@ -104,6 +197,28 @@ public class Gorilla {
       stop = true;
     }
 
+    // idx = (stream*prefixes + prefix)*machines + machine
+    private String key(int idx) {
+      String key = keys[idx];
+      if(key == null) {
+        int m = idx % machines;
+        int p = (idx / machines) % prefixes;
+        int s = idx / (machines * prefixes);
+        key = "shard" + shard.id + "#" + p + "|machine" + m + "|" + streams[s];
+        keys[idx] = key;
+      }
+      return key;
+    }
+
+    private int series(int idx) {
+      int sid = sids[idx];
+      if(sid < 0) {
+        sid = shard.getDict().getOrCreate(key(idx));
+        sids[idx] = sid;
+      }
+      return sid;
+    }
+
     public void run() {
       log.info("data generation starts");
       while (!stop) {
@@ -113,17 +228,11 @@ public class Gorilla {
           } catch(InterruptedException e) {}
           continue;
         }
-        for(String t : streams) {
-          StringBuilder sb = new StringBuilder();
-          Formatter formatter = new Formatter(sb, Locale.US);
-          long ts = Instant.now().toEpochMilli()+rnd.nextInt(5000);
-          double val = rnd.nextDouble();
-          formatter.format(t, "shard"+shard.id+"#"+rnd.nextInt(5), "machine"+rnd.nextInt(1000));
-          Event evt = new Event(sb.toString(), val, ts);
-          try {
-            evtsq.put(evt);
-          } catch(InterruptedException e) {}
-        }
+        int sid = series(workload.next());
+        Event evt = new Event(sid, workload.value(), workload.ts());
+        try {
+          evtsq.put(evt);
+        } catch(InterruptedException e) {}
       }
       log.info("data generation stops");
     }
@@ -131,43 +240,29 @@ public class Gorilla {
   }
 
   public static class WriteTask implements Runnable {
-    Environment env;
-    Store store;
+    GorillaHead head;
     DataGeneratorTask dt;
 
-    public WriteTask(Environment env, Store store, DataGeneratorTask dt) {
-      this.env = env;
-      this.store = store;
+    public WriteTask(GorillaHead head, DataGeneratorTask dt) {
+      this.head = head;
       this.dt = dt;
     }
 
     public void run() {
-      final int[] count = new int[1];
       log.info("write task starts");
+      int batch = 10000;
+      int count = 0;
+      long t1 = System.nanoTime();
       while(!dt.empty()) {
-        count[0] = 0;
-        env.executeInTransaction(new TransactionalExecutable() {
-            @Override
-            public void execute(@NotNull final Transaction txn) {
-              try {
-                int batch=10000;
-                long t1 = System.nanoTime();
-                while (!dt.empty()) {
-                  if (count[0]>=batch)
-                    break;
-                  Event evt = dt.poll();
-                  if(evt == null) break;
-                  //log.info("pull {}", evt);
-                  store.put(txn, evt.getKey(), evt.getValue());
-                  count[0]++;
-                }
-                long t2 = System.nanoTime();
-                log.info("commit {} transactions in {} mill-seconds", count[0], (t2-t1)/1e6);
-              } catch (Exception e) {
-                log.info(e);
-              }
-            }
-          });
+        Event evt = dt.poll();
+        if(evt == null) break;
+        head.append(evt.sid, evt.ts, evt.val);
+        if(++count >= batch) {
+          long t2 = System.nanoTime();
+          log.info("append {} points in {} mill-seconds", count, (t2-t1)/1e6);
+          count = 0;
+          t1 = t2;
+        }
       }
       log.info("write task stops");
     }
@@ -175,31 +270,35 @@ public class Gorilla {
   }
 
   public static class Shard implements Runnable {
-    Environment env;
-    Store store;
+    static final long RETENTION = 7*GorillaPartitions.SPAN;
+
+    Environment meta;
+    GorillaPartitions partitions;
+    SeriesDict dict;
+    GorillaHead head;
     int id;
 
     public Shard(String dir, int id) {
       this.id = id;
-      env = Environments.newInstance(dir);
-      store = env.computeInTransaction(new TransactionalComputable<Store>() {
-          @Override
-          public Store compute(@NotNull final Transaction txn) {
-            return env.openStore("gorillastore#"+dir, WITHOUT_DUPLICATES_WITH_PREFIXING, txn);
-          }
-        });
+      meta = Environments.newInstance(dir + "/meta");
+      partitions = new GorillaPartitions(dir, meta);
+      dict = new SeriesDict(meta, dir);
+      head = new GorillaHead();
       log.info("create shard {}", dir);
     }
 
     public void run() {
       try {
         DataGeneratorTask dt = new DataGeneratorTask(this);
+        GorillaHead.Flusher flusher = new GorillaHead.Flusher(head, partitions, 1000, 60000, RETENTION);
+        Thread ft = new Thread(flusher);
+        ft.start();
         Thread[] workers = new Thread[3];
         workers[0] = new Thread(dt);
         workers[0].start();
         Thread.currentThread().sleep(1000);
         for(int i=1; i< workers.length; i++) {
-          workers[i] = new Thread(new WriteTask(env, store, dt));
+          workers[i] = new Thread(new WriteTask(head, dt));
           workers[i].start();
         }
         Thread.currentThread().sleep(5000);
@@ -207,27 +306,76 @@ public class Gorilla {
         for(int i=0; i< workers.length; i++) {
           workers[i].join();
         }
+        flusher.stop();
+        ft.join();
       } catch(Exception e) {
         log.info(e);
       }
     }
 
-    Environment getEnv() {
-      return env;
+    GorillaPartitions getPartitions() {
+      return partitions;
+    }
+
+    SeriesDict getDict() {
+      return dict;
     }
 
-    Store getStore() {
-      return store;
+    GorillaHead getHead() {
+      return head;
+    }
+
+    int getId() {
+      return id;
+    }
+
+    public void close() {
+      partitions.close();
+      meta.close();
+    }
+
+    /**
+     * Opens a time ordered iterator over a series in [from, to]; reverse
+     * walks from the newest point back. Only partitions overlapping the
+     * range are opened. The caller must close it.
+     */
+    public GorillaRange range(String series, long from, long to, boolean reverse) {
+      int sid = dict.get(series);
+      if(sid < 0)
+        return GorillaRange.empty();
+      GorillaHead.View view = head.view();
+      try {
+        return new GorillaRange(view, partitions.overlapping(from, to, reverse), sid, from, to, reverse);
+      } catch(RuntimeException e) {
+        view.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Visits the points of a series in [from, to] in time order.
+     */
+    public long read(String series, long from, long to, GorillaBlock.PointConsumer consumer) {
+      long count = 0;
+      try (GorillaRange range = range(series, from, to, false)) {
+        while(range.next()) {
+          consumer.accept(range.ts(), range.val());
+          count++;
+        }
+      }
+      return count;
     }
 
   }
 
   public static class AnalyticsTask implements Runnable {
     Shard[] shards;
+    GorillaQuery query;
     private boolean stop;
 
-    public AnalyticsTask(Shard[] shards) {
+    public AnalyticsTask(Shard[] shards, GorillaQuery query) {
       this.shards = shards;
+      this.query = query;
       stop =false;
     }
 
@@ -239,27 +387,17 @@ public class Gorilla {
       log.info("start analyst");
       while (!stop) {
         try {
+          String series = "shard1#0|machine1|MEM";
+          GorillaQuery.Aggregate agg = query.aggregate(shards, series, Long.MIN_VALUE, Long.MAX_VALUE);
+          log.info("count {} min {} max {} avg {} in {} mill-seconds", agg.count, agg.min, agg.max, agg.avg(), agg.nanos/1e6);
+          for(GorillaQuery.Timing t : agg.timings) {
+            log.info("  shard {} {} points in {} mill-seconds", t.shard, t.count, t.nanos/1e6);
+          }
           for(Shard shard : shards) {
-            Environment env = shard.getEnv();
-            Store store = shard.getStore();
-            env.executeInReadonlyTransaction(new TransactionalExecutable() {
-                @Override
-                public void execute(@NotNull final Transaction txn) {
-                  try (Cursor cursor = store.openCursor(txn)) {
-                    if(cursor.getSearchKeyRange(Event.get("shard1#0|machine1|MEM")) != null) {
-                      log.info("found {} {}", Event.getKey(cursor.getKey()), Event.getTS(cursor.getKey()));
-                      int count = 1;
-                      while (cursor.getNext()) {
-                        ByteIterable key = cursor.getKey();
-                        //log.info("found {} {}", Event.getKey(cursor.getKey()), Event.getTS(cursor.getKey()));
-                        ByteIterable value = cursor.getValue();
-                        count++;
-                      }
-                      log.info("count {}", count);
-                    }
-                  }
-                }
-              });
+            try (GorillaRange latest = shard.range(series, Long.MIN_VALUE, Long.MAX_VALUE, true)) {
+              if(latest.next())
+                log.info("  shard {} latest ts {} val {}", shard.getId(), latest.ts(), latest.val());
+            }
           }
         } catch (Exception e) {
           log.info(e);
@@ -280,10 +418,11 @@ public class Gorilla {
       threadcamp1[i].start();
     }
 
+    GorillaQuery query = new GorillaQuery(Runtime.getRuntime().availableProcessors());
     AnalyticsTask[] analysts = new AnalyticsTask[1];
     Thread[] threadcamp2 = new Thread[analysts.length];
     for(int i=0; i< threadcamp2.length; i++) {
-      analysts[i] = new AnalyticsTask(shards);
+      analysts[i] = new AnalyticsTask(shards, query);
       threadcamp2[i] = new Thread(analysts[i]);
       threadcamp2[i].start();
     }
@@ -304,6 +443,7 @@ public class Gorilla {
         threadcamp2[i].join();
       } catch(InterruptedException e) {}
     }
+    query.close();
   }
 
   public static void main( String[] args ) {
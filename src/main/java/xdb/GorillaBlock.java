@@ -0,0 +1,384 @@
+package xdb;
+
+import java.util.Arrays;
+
+/**
+ * Gorilla block codec: delta-of-delta timestamps and XOR compressed doubles,
+ * bit packed into one block per series per time window.
+ *
+ * Layout: 4 byte point count, then the bit stream. The first point is stored
+ * raw (64 bit ts, 64 bit value), every following point as a dod control code
+ * plus an XOR control code.
+ */
+public class GorillaBlock {
+  public static final long WINDOW = 2*3600*1000L;
+  private static final int HEADER = 4;
+
+  public interface PointConsumer {
+    void accept(long ts, double val);
+  }
+
+  public static long window(long ts) {
+    if(ts < Long.MIN_VALUE + WINDOW)
+      return Long.MIN_VALUE;
+    return ts - Math.floorMod(ts, WINDOW);
+  }
+
+  public static int count(byte[] block) {
+    return count(block, 0);
+  }
+
+  public static int count(byte[] block, int offset) {
+    return ((block[offset] & 0xFF) << 24) | ((block[offset+1] & 0xFF) << 16)
+      | ((block[offset+2] & 0xFF) << 8) | (block[offset+3] & 0xFF);
+  }
+
+  public static class BitOutput {
+    private byte[] buf;
+    private int bitpos;
+
+    public BitOutput(int capacity) {
+      buf = new byte[Math.max(capacity, HEADER+16)];
+      bitpos = HEADER*8;
+    }
+
+    public void writeBit(boolean bit) {
+      writeBits(bit ? 1 : 0, 1);
+    }
+
+    public void writeBits(long value, int nbits) {
+      ensure(bitpos + nbits);
+      while (nbits > 0) {
+        int idx = bitpos >>> 3;
+        int free = 8 - (bitpos & 7);
+        int n = Math.min(free, nbits);
+        int chunk = (int)((value >>> (nbits - n)) & ((1 << n) - 1));
+        buf[idx] |= chunk << (free - n);
+        bitpos += n;
+        nbits -= n;
+      }
+    }
+
+    private void ensure(int bits) {
+      int bytes = (bits + 7) >>> 3;
+      if(bytes > buf.length)
+        buf = Arrays.copyOf(buf, Math.max(bytes, buf.length*2));
+    }
+
+    public byte[] toByteArray(int count) {
+      byte[] ret = Arrays.copyOf(buf, (bitpos + 7) >>> 3);
+      ret[0] = (byte)(count >>> 24);
+      ret[1] = (byte)(count >>> 16);
+      ret[2] = (byte)(count >>> 8);
+      ret[3] = (byte)count;
+      return ret;
+    }
+  }
+
+  public static class BitInput {
+    private byte[] buf;
+    private int offset;
+    private int bitpos;
+
+    public BitInput reset(byte[] buf, int offset) {
+      this.buf = buf;
+      this.offset = offset;
+      this.bitpos = HEADER*8;
+      return this;
+    }
+
+    public boolean readBit() {
+      int b = buf[offset + (bitpos >>> 3)] & 0xFF;
+      boolean ret = ((b >>> (7 - (bitpos & 7))) & 1) == 1;
+      bitpos++;
+      return ret;
+    }
+
+    public long readBits(int nbits) {
+      long v = 0;
+      while (nbits > 0) {
+        int avail = 8 - (bitpos & 7);
+        int n = Math.min(avail, nbits);
+        int chunk = ((buf[offset + (bitpos >>> 3)] & 0xFF) >>> (avail - n)) & ((1 << n) - 1);
+        v = (v << n) | chunk;
+        bitpos += n;
+        nbits -= n;
+      }
+      return v;
+    }
+  }
+
+  public static class Encoder {
+    private BitOutput out;
+    private int count;
+    private long prevTs;
+    private long prevDelta;
+    private long prevBits;
+    private int prevLead;
+    private int prevTrail;
+
+    public Encoder() {
+      this(64);
+    }
+
+    public Encoder(int capacity) {
+      out = new BitOutput(capacity);
+      prevLead = Integer.MAX_VALUE;
+    }
+
+    public int count() {
+      return count;
+    }
+
+    public void append(long ts, double val) {
+      long bits = Double.doubleToRawLongBits(val);
+      if(count == 0) {
+        out.writeBits(ts, 64);
+        out.writeBits(bits, 64);
+      } else {
+        long delta = ts - prevTs;
+        writeDod(delta - prevDelta);
+        prevDelta = delta;
+        writeXor(bits ^ prevBits);
+      }
+      prevTs = ts;
+      prevBits = bits;
+      count++;
+    }
+
+    private void writeDod(long dod) {
+      if(dod == 0) {
+        out.writeBits(0, 1);
+      } else if(dod >= -63 && dod <= 64) {
+        out.writeBits(0b10, 2);
+        out.writeBits(dod + 63, 7);
+      } else if(dod >= -255 && dod <= 256) {
+        out.writeBits(0b110, 3);
+        out.writeBits(dod + 255, 9);
+      } else if(dod >= -2047 && dod <= 2048) {
+        out.writeBits(0b1110, 4);
+        out.writeBits(dod + 2047, 12);
+      } else {
+        out.writeBits(0b1111, 4);
+        out.writeBits(dod, 64);
+      }
+    }
+
+    private void writeXor(long xor) {
+      if(xor == 0) {
+        out.writeBits(0, 1);
+        return;
+      }
+      out.writeBits(1, 1);
+      int lead = Math.min(Long.numberOfLeadingZeros(xor), 31);
+      int trail = Long.numberOfTrailingZeros(xor);
+      if(lead >= prevLead && trail >= prevTrail) {
+        out.writeBits(0, 1);
+        out.writeBits(xor >>> prevTrail, 64 - prevLead - prevTrail);
+      } else {
+        int sig = 64 - lead - trail;
+        out.writeBits(1, 1);
+        out.writeBits(lead, 5);
+        out.writeBits(sig & 0x3F, 6);
+        out.writeBits(xor >>> trail, sig);
+        prevLead = lead;
+        prevTrail = trail;
+      }
+    }
+
+    public byte[] seal() {
+      return out.toByteArray(count);
+    }
+  }
+
+  public static class Decoder {
+    private BitInput in;
+    private int count;
+    private int read;
+    private long ts;
+    private long delta;
+    private long bits;
+    private int lead;
+    private int trail;
+
+    public Decoder() {
+      in = new BitInput();
+    }
+
+    public Decoder(byte[] block) {
+      this();
+      reset(block, 0);
+    }
+
+    public Decoder reset(byte[] block, int offset) {
+      in.reset(block, offset);
+      count = GorillaBlock.count(block, offset);
+      read = 0;
+      delta = 0;
+      lead = 0;
+      trail = 0;
+      return this;
+    }
+
+    public int count() {
+      return count;
+    }
+
+    public boolean next() {
+      if(read >= count)
+        return false;
+      if(read == 0) {
+        ts = in.readBits(64);
+        bits = in.readBits(64);
+      } else {
+        delta += readDod();
+        ts += delta;
+        readXor();
+      }
+      read++;
+      return true;
+    }
+
+    private long readDod() {
+      if(!in.readBit())
+        return 0;
+      if(!in.readBit())
+        return in.readBits(7) - 63;
+      if(!in.readBit())
+        return in.readBits(9) - 255;
+      if(!in.readBit())
+        return in.readBits(12) - 2047;
+      return in.readBits(64);
+    }
+
+    private void readXor() {
+      if(!in.readBit())
+        return;
+      if(in.readBit()) {
+        lead = (int)in.readBits(5);
+        int sig = (int)in.readBits(6);
+        if(sig == 0)
+          sig = 64;
+        trail = 64 - lead - sig;
+      }
+      bits ^= in.readBits(64 - lead - trail) << trail;
+    }
+
+    public long ts() {
+      return ts;
+    }
+
+    public double val() {
+      return Double.longBitsToDouble(bits);
+    }
+  }
+
+  /**
+   * Growable buffer of (ts, val) points for one series window, sorted before
+   * it is sealed so every persisted block is in timestamp order.
+   */
+  public static class Points {
+    private long[] ts;
+    private double[] vals;
+    private int size;
+    private Decoder decoder;
+
+    public Points() {
+      this(16);
+    }
+
+    public Points(int capacity) {
+      ts = new long[capacity];
+      vals = new double[capacity];
+    }
+
+    public void add(long t, double v) {
+      if(size == ts.length) {
+        ts = Arrays.copyOf(ts, Math.max(size*2, 16));
+        vals = Arrays.copyOf(vals, Math.max(size*2, 16));
+      }
+      ts[size] = t;
+      vals[size] = v;
+      size++;
+    }
+
+    public void addAll(byte[] block) {
+      if(decoder == null)
+        decoder = new Decoder();
+      Decoder d = decoder.reset(block, 0);
+      while(d.next())
+        add(d.ts(), d.val());
+    }
+
+    public void addAll(Points points) {
+      for(int i = 0; i < points.size; i++)
+        add(points.ts[i], points.vals[i]);
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public long ts(int i) {
+      return ts[i];
+    }
+
+    public double val(int i) {
+      return vals[i];
+    }
+
+    public void clear() {
+      size = 0;
+    }
+
+    public void sort() {
+      for(int i = 1; i < size; i++) {
+        if(ts[i-1] > ts[i]) {
+          sort(0, size-1);
+          return;
+        }
+      }
+    }
+
+    private void sort(int lo, int hi) {
+      while(lo < hi) {
+        if(hi - lo < 16) {
+          for(int i = lo+1; i <= hi; i++) {
+            for(int j = i; j > lo && ts[j-1] > ts[j]; j--)
+              swap(j-1, j);
+          }
+          return;
+        }
+        long pivot = ts[(lo+hi) >>> 1];
+        int i = lo, j = hi;
+        while(i <= j) {
+          while(ts[i] < pivot) i++;
+          while(ts[j] > pivot) j--;
+          if(i <= j)
+            swap(i++, j--);
+        }
+        if(j - lo < hi - i) {
+          sort(lo, j);
+          lo = i;
+        } else {
+          sort(i, hi);
+          hi = j;
+        }
+      }
+    }
+
+    private void swap(int i, int j) {
+      long t = ts[i]; ts[i] = ts[j]; ts[j] = t;
+      double v = vals[i]; vals[i] = vals[j]; vals[j] = v;
+    }
+
+    public byte[] seal() {
+      sort();
+      Encoder enc = new Encoder(size*2);
+      for(int i = 0; i < size; i++)
+        enc.append(ts[i], vals[i]);
+      return enc.seal();
+    }
+  }
+
+}
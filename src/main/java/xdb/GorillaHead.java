@@ -0,0 +1,378 @@
+package xdb;
+
+import jetbrains.exodus.env.*;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.ArrayByteIterable;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory head of a Gorilla shard. Every (series, window) pair owns a chain
+ * of append-only chunks; ingest threads claim slots with a CAS on the chunk
+ * counter, so appends never take a lock. The flusher seals closed windows and
+ * merges them into the shard partitions in a few large transactions.
+ *
+ * Readers go through a View, which holds the read side of a lock that the
+ * flusher only takes to swap chains and to commit, so a query sees every
+ * point exactly once: either still in the head or already in the store.
+ */
+public class GorillaHead {
+  private static Logger log = LogManager.getLogger(GorillaHead.class);
+
+  private static final int CLOSED = 1 << 30;
+  private static final int CHUNK = 64;
+  private static final int MAX_CHUNK = 4096;
+  private static final Chunk SEALED = new Chunk(0, 0, null);
+
+  private final ConcurrentSkipListMap<Long, AtomicReference<Chunk>> heads;
+  private final ConcurrentSkipListMap<Long, Sealed> pending;
+  private final ReentrantReadWriteLock lock;
+  private final AtomicLong points;
+
+  static class Chunk {
+    final long window;
+    final AtomicInteger claim;
+    final AtomicLongArray ts;
+    final AtomicLongArray bits;
+    final Chunk prev;
+
+    Chunk(long window, int cap, Chunk prev) {
+      this.window = window;
+      this.claim = new AtomicInteger();
+      this.ts = new AtomicLongArray(cap);
+      this.bits = new AtomicLongArray(cap);
+      this.prev = prev;
+    }
+
+    int capacity() {
+      return ts.length();
+    }
+
+    void write(int i, long t, double v) {
+      bits.lazySet(i, Double.doubleToRawLongBits(v));
+      // stored as offset+1 inside the window, so 0 marks a claimed but unwritten slot
+      ts.set(i, t - window + 1);
+    }
+
+    int size() {
+      return Math.min(claim.get(), capacity());
+    }
+
+    void forEach(long from, long to, GorillaBlock.PointConsumer consumer) {
+      for(Chunk c = this; c != null; c = c.prev) {
+        int n = c.size();
+        for(int i = 0; i < n; i++) {
+          long t = c.ts.get(i);
+          if(t == 0)
+            continue;
+          t += c.window - 1;
+          if(t >= from && t <= to)
+            consumer.accept(t, Double.longBitsToDouble(c.bits.get(i)));
+        }
+      }
+    }
+
+    void drainTo(GorillaBlock.Points points) {
+      for(Chunk c = this; c != null; c = c.prev) {
+        int n = Math.min(c.claim.getAndSet(CLOSED), c.capacity());
+        for(int i = 0; i < n; i++) {
+          long t;
+          while((t = c.ts.get(i)) == 0)
+            Thread.yield();
+          points.add(t + c.window - 1, Double.longBitsToDouble(c.bits.get(i)));
+        }
+      }
+    }
+  }
+
+  // sealed chains of one (series, window) waiting to be committed; a chain
+  // is drained into points once, so a failed commit is retried from points
+  static class Sealed {
+    final long window;
+    final List<Chunk> chains;
+    final GorillaBlock.Points points;
+    int drained;
+
+    Sealed(long window) {
+      this.window = window;
+      this.chains = new CopyOnWriteArrayList<Chunk>();
+      this.points = new GorillaBlock.Points();
+      this.drained = 0;
+    }
+
+    GorillaBlock.Points drain() {
+      for(; drained < chains.size(); drained++)
+        chains.get(drained).drainTo(points);
+      return points;
+    }
+  }
+
+  public GorillaHead() {
+    heads = new ConcurrentSkipListMap<Long, AtomicReference<Chunk>>();
+    pending = new ConcurrentSkipListMap<Long, Sealed>();
+    lock = new ReentrantReadWriteLock();
+    points = new AtomicLong();
+  }
+
+  static long key(int sid, long window) {
+    long w = Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.floorDiv(window, GorillaBlock.WINDOW)));
+    return ((long)sid << 32) | (((int)w ^ 0x80000000) & 0xFFFFFFFFL);
+  }
+
+  static int series(long key) {
+    return (int)(key >>> 32);
+  }
+
+  public long size() {
+    return points.get();
+  }
+
+  public void append(int sid, long ts, double val) {
+    long window = GorillaBlock.window(ts);
+    Long key = key(sid, window);
+    while(true) {
+      AtomicReference<Chunk> ref = heads.get(key);
+      if(ref == null) {
+        AtomicReference<Chunk> r = new AtomicReference<Chunk>(new Chunk(window, CHUNK, null));
+        ref = heads.putIfAbsent(key, r);
+        if(ref == null)
+          ref = r;
+      }
+      Chunk c = ref.get();
+      if(c == SEALED) {
+        Thread.yield();
+        continue;
+      }
+      int i = c.claim.getAndIncrement();
+      if(i < c.capacity()) {
+        c.write(i, ts, val);
+        points.incrementAndGet();
+        return;
+      }
+      if(i >= CLOSED)
+        continue;
+      ref.compareAndSet(c, new Chunk(window, Math.min(c.capacity()*2, MAX_CHUNK), c));
+    }
+  }
+
+  public class View implements AutoCloseable {
+    private final Map<GorillaPartitions.Partition, Transaction> txns;
+
+    View() {
+      txns = new HashMap<GorillaPartitions.Partition, Transaction>(4);
+      lock.readLock().lock();
+    }
+
+    /**
+     * Read-only transaction on a partition, begun on first use and kept
+     * until the view is closed.
+     */
+    public Transaction getTransaction(GorillaPartitions.Partition p) {
+      Transaction txn = txns.get(p);
+      if(txn == null) {
+        txn = p.getEnv().beginReadonlyTransaction();
+        txns.put(p, txn);
+      }
+      return txn;
+    }
+
+    /**
+     * Visits the in-memory points of a series in [from, to], in no particular order.
+     */
+    public void forEach(int sid, long from, long to, GorillaBlock.PointConsumer consumer) {
+      long lo = key(sid, GorillaBlock.window(from));
+      long hi = key(sid, GorillaBlock.window(to));
+      for(AtomicReference<Chunk> ref : heads.subMap(lo, true, hi, true).values()) {
+        Chunk c = ref.get();
+        if(c != SEALED)
+          c.forEach(from, to, consumer);
+      }
+      for(Sealed s : pending.subMap(lo, true, hi, true).values()) {
+        for(Chunk c : s.chains)
+          c.forEach(from, to, consumer);
+      }
+    }
+
+    public void close() {
+      try {
+        for(Transaction txn : txns.values())
+          txn.abort();
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+  }
+
+  public View view() {
+    return new View();
+  }
+
+  /**
+   * Runs the task while no view is open and no flush is committing.
+   */
+  public void exclusive(Runnable task) {
+    lock.writeLock().lock();
+    try {
+      task.run();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Seals every window that ended before the given timestamp and writes it to
+   * the partition owning the window, merging with any block already persisted
+   * for that window. Windows whose commit failed before are retried first.
+   * Windows of partitions that ended at or before expired are dropped
+   * instead, so a flush never recreates a partition retention removed.
+   * Returns the number of points flushed.
+   */
+  public long flush(GorillaPartitions partitions, long before, long expired, int batch) {
+    lock.writeLock().lock();
+    try {
+      for(Map.Entry<Long, AtomicReference<Chunk>> e : heads.entrySet()) {
+        Chunk c = e.getValue().get();
+        if(c == SEALED || c.window + GorillaBlock.WINDOW > before)
+          continue;
+        pending.computeIfAbsent(e.getKey(), k -> new Sealed(c.window)).chains.add(e.getValue().getAndSet(SEALED));
+        heads.remove(e.getKey(), e.getValue());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    List<Long> keys = new ArrayList<Long>();
+    long dropped = 0;
+    for(Map.Entry<Long, Sealed> e : pending.entrySet()) {
+      Sealed s = e.getValue();
+      if(GorillaPartitions.start(s.window) + GorillaPartitions.SPAN > expired) {
+        keys.add(e.getKey());
+        continue;
+      }
+      long n = s.drain().size();
+      pending.remove(e.getKey());
+      points.addAndGet(-n);
+      dropped += n;
+    }
+    if(dropped > 0)
+      log.info("drop {} points older than {}", dropped, expired);
+    long total = 0;
+    for(int from = 0; from < keys.size(); from += batch) {
+      List<Long> part = keys.subList(from, Math.min(from + batch, keys.size()));
+      Map<GorillaPartitions.Partition, Map<Long, GorillaBlock.Points>> groups =
+        new HashMap<GorillaPartitions.Partition, Map<Long, GorillaBlock.Points>>();
+      for(Long key : part) {
+        Sealed s = pending.get(key);
+        groups.computeIfAbsent(partitions.get(s.window), p -> new HashMap<Long, GorillaBlock.Points>()).put(key, s.drain());
+      }
+      for(Map.Entry<GorillaPartitions.Partition, Map<Long, GorillaBlock.Points>> g : groups.entrySet()) {
+        long t1 = System.nanoTime();
+        commit(g.getKey().getEnv(), g.getKey().getStore(), g.getValue());
+        long t2 = System.nanoTime();
+        log.info("flush {} blocks to {} in {} mill-seconds", g.getValue().size(), g.getKey(), (t2-t1)/1e6);
+        long n = 0;
+        for(GorillaBlock.Points p : g.getValue().values())
+          n += p.size();
+        points.addAndGet(-n);
+        total += n;
+      }
+    }
+    return total;
+  }
+
+  public long flushAll(GorillaPartitions partitions) {
+    return flush(partitions, Long.MAX_VALUE, Long.MIN_VALUE, 10000);
+  }
+
+  private void commit(Environment env, Store store, Map<Long, GorillaBlock.Points> blocks) {
+    while(true) {
+      Transaction txn = env.beginTransaction();
+      boolean done = false;
+      try {
+        for(Map.Entry<Long, GorillaBlock.Points> e : blocks.entrySet()) {
+          GorillaBlock.Points fresh = e.getValue();
+          if(fresh.size() == 0)
+            continue;
+          ByteIterable key = Gorilla.Event.get(series(e.getKey()), GorillaBlock.window(fresh.ts(0)));
+          GorillaBlock.Points points = fresh;
+          ByteIterable old = store.get(txn, key);
+          if(old != null) {
+            points = new GorillaBlock.Points(fresh.size());
+            points.addAll(old.getBytesUnsafe());
+            points.addAll(fresh);
+          }
+          store.put(txn, key, new ArrayByteIterable(points.seal()));
+        }
+        lock.writeLock().lock();
+        try {
+          if(txn.commit()) {
+            done = true;
+            for(Long key : blocks.keySet())
+              pending.remove(key);
+            return;
+          }
+        } finally {
+          lock.writeLock().unlock();
+        }
+      } finally {
+        if(!done)
+          txn.abort();
+      }
+    }
+  }
+
+  public static class Flusher implements Runnable {
+    private final GorillaHead head;
+    private final GorillaPartitions partitions;
+    private final long interval;
+    private final long grace;
+    private final long retention;
+    private volatile boolean stop;
+
+    /**
+     * Flushes windows closed for longer than grace; with a positive retention
+     * also drops partitions that ended more than retention ago. Retention runs
+     * on this thread, between flushes, so it never races a partition write.
+     */
+    public Flusher(GorillaHead head, GorillaPartitions partitions, long interval, long grace, long retention) {
+      this.head = head;
+      this.partitions = partitions;
+      this.interval = interval;
+      this.grace = grace;
+      this.retention = retention;
+      this.stop = false;
+    }
+
+    public void stop() {
+      stop = true;
+    }
+
+    public void run() {
+      log.info("head flusher starts");
+      while(!stop) {
+        try {
+          Thread.currentThread().sleep(interval);
+        } catch(InterruptedException e) {}
+        try {
+          long now = System.currentTimeMillis();
+          head.flush(partitions, now - grace, expired(now), 10000);
+          if(retention > 0)
+            partitions.expire(head, now - retention);
+        } catch(Exception e) {
+          log.info(e);
+        }
+      }
+      long n = head.flush(partitions, Long.MAX_VALUE, expired(System.currentTimeMillis()), 10000);
+      log.info("head flusher stops, flushed {} points", n);
+    }
+
+    private long expired(long now) {
+      return retention > 0 ? now - retention : Long.MIN_VALUE;
+    }
+  }
+
+}
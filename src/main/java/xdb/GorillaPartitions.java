@@ -0,0 +1,210 @@
+package xdb;
+
+import jetbrains.exodus.env.*;
+import org.jetbrains.annotations.NotNull;
+import static jetbrains.exodus.bindings.LongBinding.entryToLong;
+import static jetbrains.exodus.bindings.LongBinding.longToEntry;
+import static jetbrains.exodus.bindings.StringBinding.entryToString;
+import static jetbrains.exodus.bindings.StringBinding.stringToEntry;
+import static jetbrains.exodus.env.StoreConfig.WITHOUT_DUPLICATES;
+import static jetbrains.exodus.env.StoreConfig.WITHOUT_DUPLICATES_WITH_PREFIXING;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Catalog of the daily partitions of a Gorilla shard. Every partition is a
+ * separate Environment in its own directory, opened on first use, so a
+ * query only touches the days it overlaps and retention drops a whole day
+ * by closing its environment and deleting the directory.
+ */
+public class GorillaPartitions {
+  private static Logger log = LogManager.getLogger(GorillaPartitions.class);
+
+  public static final long SPAN = 24*3600*1000L;
+
+  private final String dir;
+  private final Environment meta;
+  private final Store catalog;
+  private final ConcurrentSkipListMap<Long, Partition> parts;
+
+  public static class Partition {
+    public final long start;
+    final String dir;
+    private Environment env;
+    private Store store;
+    private boolean closed;
+
+    Partition(long start, String dir) {
+      this.start = start;
+      this.dir = dir;
+    }
+
+    public long end() {
+      return start + SPAN;
+    }
+
+    synchronized Environment getEnv() {
+      if(closed)
+        throw new IllegalStateException("partition " + dir + " is closed");
+      if(env == null) {
+        final Environment e = Environments.newInstance(dir);
+        store = e.computeInTransaction(new TransactionalComputable<Store>() {
+            @Override
+            public Store compute(@NotNull final Transaction txn) {
+              return e.openStore("gorillastore", WITHOUT_DUPLICATES_WITH_PREFIXING, txn);
+            }
+          });
+        env = e;
+      }
+      return env;
+    }
+
+    synchronized Store getStore() {
+      getEnv();
+      return store;
+    }
+
+    synchronized void close() {
+      closed = true;
+      if(env != null)
+        env.close();
+      env = null;
+      store = null;
+    }
+
+    public String toString() {
+      return dir;
+    }
+  }
+
+  public GorillaPartitions(String dir, Environment meta) {
+    this.dir = dir;
+    this.meta = meta;
+    this.parts = new ConcurrentSkipListMap<Long, Partition>();
+    this.catalog = meta.computeInTransaction(new TransactionalComputable<Store>() {
+        @Override
+        public Store compute(@NotNull final Transaction txn) {
+          return meta.openStore("partitions", WITHOUT_DUPLICATES, txn);
+        }
+      });
+    meta.executeInReadonlyTransaction(new TransactionalExecutable() {
+        @Override
+        public void execute(@NotNull final Transaction txn) {
+          try (Cursor cursor = catalog.openCursor(txn)) {
+            while(cursor.getNext()) {
+              long start = entryToLong(cursor.getKey());
+              parts.put(start, new Partition(start, entryToString(cursor.getValue())));
+            }
+          }
+        }
+      });
+    log.info("partition catalog {} has {} partitions", dir, parts.size());
+  }
+
+  public static long start(long ts) {
+    if(ts < Long.MIN_VALUE + SPAN)
+      return Long.MIN_VALUE;
+    return ts - Math.floorMod(ts, SPAN);
+  }
+
+  /**
+   * Returns the partition holding the timestamp, creating it if needed.
+   */
+  public Partition get(long ts) {
+    long start = start(ts);
+    Partition p = parts.get(start);
+    if(p != null)
+      return p;
+    synchronized(this) {
+      p = parts.get(start);
+      if(p != null)
+        return p;
+      String pdir = dir + "/p" + Math.floorDiv(start, SPAN);
+      meta.executeInTransaction(new TransactionalExecutable() {
+          @Override
+          public void execute(@NotNull final Transaction txn) {
+            catalog.put(txn, longToEntry(start), stringToEntry(pdir));
+          }
+        });
+      p = new Partition(start, pdir);
+      parts.put(start, p);
+      log.info("create partition {}", pdir);
+      return p;
+    }
+  }
+
+  /**
+   * Partitions overlapping [from, to], oldest first or newest first.
+   */
+  public List<Partition> overlapping(long from, long to, boolean reverse) {
+    if(from > to)
+      return Collections.emptyList();
+    NavigableMap<Long, Partition> m = parts.subMap(start(from), true, to, true);
+    return new ArrayList<Partition>(reverse ? m.descendingMap().values() : m.values());
+  }
+
+  public int size() {
+    return parts.size();
+  }
+
+  /**
+   * Drops every partition that ended at or before the given time. Partitions
+   * are unlinked from the catalog first, closed while the head blocks new
+   * readers, then their directories are deleted. Returns the bytes reclaimed.
+   */
+  public long expire(GorillaHead head, long before) {
+    List<Partition> expired = new ArrayList<Partition>();
+    synchronized(this) {
+      for(Partition p : parts.values()) {
+        if(p.end() > before)
+          break;
+        expired.add(p);
+      }
+      if(expired.isEmpty())
+        return 0;
+      meta.executeInTransaction(new TransactionalExecutable() {
+          @Override
+          public void execute(@NotNull final Transaction txn) {
+            for(Partition p : expired)
+              catalog.delete(txn, longToEntry(p.start));
+          }
+        });
+      for(Partition p : expired)
+        parts.remove(p.start, p);
+    }
+    head.exclusive(() -> {
+        for(Partition p : expired)
+          p.close();
+      });
+    long bytes = 0;
+    for(Partition p : expired) {
+      long n = delete(new File(p.dir));
+      log.info("drop partition {} reclaimed {} bytes", p, n);
+      bytes += n;
+    }
+    return bytes;
+  }
+
+  private static long delete(File f) {
+    long bytes = 0;
+    File[] children = f.listFiles();
+    if(children != null) {
+      for(File c : children)
+        bytes += delete(c);
+    } else {
+      bytes = f.length();
+    }
+    if(!f.delete() && f.exists())
+      log.info("can not delete {}", f);
+    return bytes;
+  }
+
+  public void close() {
+    for(Partition p : parts.values())
+      p.close();
+  }
+
+}
@@ -0,0 +1,194 @@
+package xdb;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Scatter-gather executor for Gorilla series queries. A query is fanned out
+ * to every shard on a bounded pool; partial results are handed back as each
+ * shard finishes and then merged in time order or folded into an aggregate.
+ * When the pool queue is full the calling thread runs the shard itself.
+ */
+public class GorillaQuery implements AutoCloseable {
+  private static Logger log = LogManager.getLogger(GorillaQuery.class);
+
+  private final ThreadPoolExecutor pool;
+
+  public GorillaQuery(int threads) {
+    this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                       new ArrayBlockingQueue<Runnable>(threads*4),
+                                       new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  public static class Timing {
+    public final int shard;
+    public final long count;
+    public final long nanos;
+
+    Timing(int shard, long count, long nanos) {
+      this.shard = shard;
+      this.count = count;
+      this.nanos = nanos;
+    }
+
+    public String toString() {
+      return "shard" + shard + ";count=" + count + ";ms=" + nanos/1e6;
+    }
+  }
+
+  public static class Partial {
+    public final Timing timing;
+    public final GorillaBlock.Points points;
+
+    Partial(Timing timing, GorillaBlock.Points points) {
+      this.timing = timing;
+      this.points = points;
+    }
+  }
+
+  public static class Aggregate implements GorillaBlock.PointConsumer {
+    public long count;
+    public double sum;
+    public double min = Double.POSITIVE_INFINITY;
+    public double max = Double.NEGATIVE_INFINITY;
+    public long nanos;
+    public final List<Timing> timings = new ArrayList<Timing>();
+
+    public void accept(long ts, double val) {
+      count++;
+      sum += val;
+      if(val < min) min = val;
+      if(val > max) max = val;
+    }
+
+    public void combine(Aggregate other) {
+      count += other.count;
+      sum += other.sum;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+
+    public double avg() {
+      return count == 0 ? 0 : sum/count;
+    }
+  }
+
+  public static class Result {
+    public final GorillaBlock.Points points;
+    public final List<Timing> timings;
+    public final long nanos;
+
+    Result(GorillaBlock.Points points, List<Timing> timings, long nanos) {
+      this.points = points;
+      this.timings = timings;
+      this.nanos = nanos;
+    }
+  }
+
+  private <T> List<T> scatter(Callable<T>[] tasks, Consumer<T> partial) {
+    ExecutorCompletionService<T> ecs = new ExecutorCompletionService<T>(pool);
+    List<Future<T>> futures = new ArrayList<Future<T>>(tasks.length);
+    for(Callable<T> task : tasks)
+      futures.add(ecs.submit(task));
+    List<T> ret = new ArrayList<T>(tasks.length);
+    try {
+      for(int i = 0; i < tasks.length; i++) {
+        T r = ecs.take().get();
+        if(partial != null)
+          partial.accept(r);
+        ret.add(r);
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch(ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      // no interrupts: an interrupted Xodus read closes the underlying file channel
+      for(Future<T> f : futures)
+        f.cancel(false);
+    }
+    return ret;
+  }
+
+  /**
+   * Reads a series from every shard in parallel. Each shard's points are
+   * sorted before they are handed to the listener, in completion order.
+   */
+  @SuppressWarnings("unchecked")
+  public List<Partial> stream(Gorilla.Shard[] shards, String series, long from, long to, Consumer<Partial> listener) {
+    Callable<Partial>[] tasks = new Callable[shards.length];
+    for(int i = 0; i < shards.length; i++) {
+      final Gorilla.Shard shard = shards[i];
+      tasks[i] = () -> {
+        long t1 = System.nanoTime();
+        GorillaBlock.Points points = new GorillaBlock.Points();
+        shard.read(series, from, to, points::add);
+        points.sort();
+        return new Partial(new Timing(shard.getId(), points.size(), System.nanoTime()-t1), points);
+      };
+    }
+    return scatter(tasks, listener);
+  }
+
+  public Result merge(Gorilla.Shard[] shards, String series, long from, long to) {
+    long t1 = System.nanoTime();
+    List<Partial> partials = stream(shards, series, from, to, null);
+    int total = 0;
+    List<Timing> timings = new ArrayList<Timing>(partials.size());
+    PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(partials.size(), 1),
+        (a, b) -> Long.compare(partials.get(a[0]).points.ts(a[1]), partials.get(b[0]).points.ts(b[1])));
+    for(int i = 0; i < partials.size(); i++) {
+      Partial p = partials.get(i);
+      timings.add(p.timing);
+      total += p.points.size();
+      if(p.points.size() > 0)
+        heads.add(new int[]{i, 0});
+    }
+    GorillaBlock.Points merged = new GorillaBlock.Points(Math.max(total, 1));
+    while(!heads.isEmpty()) {
+      int[] h = heads.poll();
+      GorillaBlock.Points p = partials.get(h[0]).points;
+      merged.add(p.ts(h[1]), p.val(h[1]));
+      if(++h[1] < p.size())
+        heads.add(h);
+    }
+    return new Result(merged, timings, System.nanoTime()-t1);
+  }
+
+  @SuppressWarnings("unchecked")
+  public Aggregate aggregate(Gorilla.Shard[] shards, String series, long from, long to) {
+    long t1 = System.nanoTime();
+    Callable<Aggregate>[] tasks = new Callable[shards.length];
+    for(int i = 0; i < shards.length; i++) {
+      final Gorilla.Shard shard = shards[i];
+      tasks[i] = () -> {
+        long t = System.nanoTime();
+        Aggregate agg = new Aggregate();
+        shard.read(series, from, to, agg);
+        agg.timings.add(new Timing(shard.getId(), agg.count, System.nanoTime()-t));
+        return agg;
+      };
+    }
+    Aggregate ret = new Aggregate();
+    for(Aggregate agg : scatter(tasks, null)) {
+      ret.combine(agg);
+      ret.timings.addAll(agg.timings);
+    }
+    ret.nanos = System.nanoTime()-t1;
+    return ret;
+  }
+
+  public void close() {
+    pool.shutdown();
+    try {
+      pool.awaitTermination(10, TimeUnit.SECONDS);
+    } catch(InterruptedException e) {
+      log.info(e);
+    }
+  }
+
+}
@@ -0,0 +1,182 @@
+package xdb;
+
+import jetbrains.exodus.env.*;
+import java.util.*;
+
+/**
+ * Time ordered iterator over one series in [from, to], forward or reverse.
+ * Walks the overlapping partitions in time order; in each one it seeks
+ * straight to the first block of the range and stops at the first key
+ * outside the series or the time bound, so the cost follows the result size.
+ * Persisted blocks and in-memory head points are merged on the fly.
+ */
+public class GorillaRange implements AutoCloseable {
+  private final GorillaHead.View view;
+  private final List<GorillaPartitions.Partition> parts;
+  private int part;
+  private Cursor cursor;
+  private final int sid;
+  private final long from;
+  private final long to;
+  private final boolean reverse;
+
+  private final Gorilla.EventView row;
+  private GorillaBlock.Decoder decoder;
+  private final GorillaBlock.Points block;
+  private int bpos;
+  private boolean open;
+  private boolean exhausted;
+
+  private final GorillaBlock.Points head;
+  private int hpos;
+
+  private boolean pending;
+  private long pts;
+  private double pval;
+
+  private long ts;
+  private double val;
+
+  GorillaRange(GorillaHead.View view, List<GorillaPartitions.Partition> parts, int sid, long from, long to, boolean reverse) {
+    this.view = view;
+    this.parts = parts;
+    this.sid = sid;
+    this.from = from;
+    this.to = to;
+    this.reverse = reverse;
+    this.row = new Gorilla.EventView();
+    this.block = new GorillaBlock.Points();
+    this.head = new GorillaBlock.Points();
+    if(view == null || from > to) {
+      this.exhausted = true;
+      return;
+    }
+    view.forEach(sid, from, to, head::add);
+    head.sort();
+    hpos = reverse ? head.size() - 1 : 0;
+    part = -1;
+    exhausted = !seekPartition();
+    pending = advance();
+  }
+
+  static GorillaRange empty() {
+    return new GorillaRange(null, Collections.emptyList(), -1, 0, 0, false);
+  }
+
+  private boolean seekPartition() {
+    while(++part < parts.size()) {
+      GorillaPartitions.Partition p = parts.get(part);
+      if(cursor != null)
+        cursor.close();
+      cursor = p.getStore().openCursor(view.getTransaction(p));
+      row.wrap(cursor);
+      boolean found;
+      if(reverse) {
+        if(!row.seek(sid, GorillaBlock.window(to)))
+          found = row.last();
+        else if(row.sid() != sid || row.window() > to)
+          found = row.prev();
+        else
+          found = true;
+      } else {
+        found = row.seek(sid, GorillaBlock.window(from));
+      }
+      if(found)
+        return true;
+    }
+    return false;
+  }
+
+  private boolean advance() {
+    while(true) {
+      if(open) {
+        if(reverse) {
+          while(bpos >= 0) {
+            long t = block.ts(bpos);
+            double v = block.val(bpos);
+            bpos--;
+            if(t < from) {
+              exhausted = true;
+              return false;
+            }
+            if(t <= to) {
+              pts = t;
+              pval = v;
+              return true;
+            }
+          }
+        } else {
+          while(decoder.next()) {
+            long t = decoder.ts();
+            if(t > to) {
+              exhausted = true;
+              return false;
+            }
+            if(t >= from) {
+              pts = t;
+              pval = decoder.val();
+              return true;
+            }
+          }
+        }
+        open = false;
+        exhausted = !(reverse ? row.prev() : row.next());
+      }
+      if(exhausted) {
+        if(!seekPartition())
+          return false;
+        exhausted = false;
+      }
+      long window = row.window();
+      if(row.sid() != sid || (reverse ? window + GorillaBlock.WINDOW <= from : window > to)) {
+        exhausted = true;
+        continue;
+      }
+      decoder = row.block();
+      if(reverse) {
+        block.clear();
+        while(decoder.next())
+          block.add(decoder.ts(), decoder.val());
+        bpos = block.size() - 1;
+      }
+      open = true;
+    }
+  }
+
+  public boolean next() {
+    boolean inhead = reverse ? hpos >= 0 : hpos < head.size();
+    if(!pending && !inhead)
+      return false;
+    boolean takeHead = !pending
+      || (inhead && (reverse ? head.ts(hpos) > pts : head.ts(hpos) < pts));
+    if(takeHead) {
+      ts = head.ts(hpos);
+      val = head.val(hpos);
+      hpos += reverse ? -1 : 1;
+    } else {
+      ts = pts;
+      val = pval;
+      pending = advance();
+    }
+    return true;
+  }
+
+  public long ts() {
+    return ts;
+  }
+
+  public double val() {
+    return val;
+  }
+
+  public void close() {
+    try {
+      if(cursor != null)
+        cursor.close();
+    } finally {
+      if(view != null)
+        view.close();
+    }
+  }
+
+}
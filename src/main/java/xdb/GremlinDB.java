@@ -13,6 +13,7 @@ import java.util.function.LongConsumer;
 import java.util.concurrent.*;
 import java.time.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class GremlinDB {
   private static Logger log = LogManager.getLogger(GremlinDB.class);
@@ -24,7 +25,9 @@ public class GremlinDB {
 
   public static class Vertex implements Element {
     public long uid = -1;
+    // null on an edge endpoint until props() loads it
     public Map<String, Object> props;
+    private GremlinDB db;
 
     public Vertex() {
       this.uid = -1;
@@ -36,6 +39,33 @@ public class GremlinDB {
       this.props = props;
     }
 
+    // edge endpoint holding only its uid
+    Vertex(long uid, GremlinDB db) {
+      this.uid = uid;
+      this.db = db;
+    }
+
+    /**
+     * The properties, read on first access when this is the endpoint of a
+     * loaded edge. Loading uses a short-lived session of its own, so it is
+     * safe from any thread, e.g. inside edges().parallel(); it throws
+     * IllegalStateException once the GremlinDB is closed.
+     */
+    public synchronized Map<String, Object> props() {
+      if(props == null && db != null)
+        fill(db.fetch(uid));
+      return props;
+    }
+
+    public boolean loaded() {
+      return props != null;
+    }
+
+    synchronized void fill(Map<String, Object> props) {
+      this.props = props;
+      this.db = null;
+    }
+
     public Edge link(Vertex end, Map<String, Object> props) {
       return new Edge(this, end, props);
     }
@@ -43,23 +73,29 @@ public class GremlinDB {
     public long uid() { return uid; }
 
     public String toString() {
-      return "vertex:" + uid + "props:" + gson.toJson(props);
+      return "vertex:" + uid + "props:" + gson.toJson(props());
     }
   }
 
   public static class Edge implements Element {
     public long uid;
+    public String label;
     public Map<String, Object> props;
     public Vertex start;
     public Vertex end;
 
     public Edge(Vertex start, Vertex end, Map<String, Object> props) {
-      this(-1, start, end, props);
+      this(-1, start, "", end, props);
     }
 
-    public Edge(long uid, Vertex start, Vertex end, Map<String, Object> props) {
+    public Edge(Vertex start, String label, Vertex end, Map<String, Object> props) {
+      this(-1, start, label, end, props);
+    }
+
+    public Edge(long uid, Vertex start, String label, Vertex end, Map<String, Object> props) {
       this.uid = uid;
       this.start = start;
+      this.label = label;
       this.end = end;
       this.props = props;
     }
@@ -67,7 +103,7 @@ public class GremlinDB {
     public long uid() { return uid; }
 
     public String toString() {
-      return "edge:" + uid + "props:" + gson.toJson(props) + " start:" + start + " end:" + end;
+      return "edge:" + uid + " label:" + label + " props:" + gson.toJson(props) + " start:" + start.uid + " end:" + end.uid;
     }
 
   }
@@ -78,10 +114,17 @@ public class GremlinDB {
   private final Integer VERTEX_KIND = 0;
   private final Integer EDGE_KIND = 1;
   private Connection conn;
+  // lazy endpoint loads hold the read side, close() the write side
+  private final ReentrantReadWriteLock closing = new ReentrantReadWriteLock();
+  private volatile boolean closed;
   private Session session;
   private Cursor uids;
   private Cursor tuples;
-  private Cursor reversed;
+  // property index: (key, encoded value + uid)
+  private Cursor values;
+  // adjacency: (src, label, dst, edge) and (dst, label, src, edge)
+  private Cursor out;
+  private Cursor in;
 
   private static boolean checkDir(String dir) {
     boolean ret = true;
@@ -106,10 +149,99 @@ public class GremlinDB {
     session = conn.open_session(null);
     session.create("table:uids", "key_format=r,value_format=u");
     uids = session.open_cursor("table:uids", null, "append");
-    session.create("table:tuples", "key_format=qS,value_format=S,columns=(uid,key,value)");
+    String tuplesMeta = metadata("table:tuples");
+    if(tuplesMeta != null && !tuplesMeta.contains("value_format=u")) {
+      conn.close(null);
+      throw new IllegalStateException(db + " stores properties as JSON (tuples value_format=S);"
+                                      + " reload it into a new store to use the binary property format");
+    }
+    session.create("table:tuples", "key_format=qS,value_format=u,columns=(uid,key,value)");
     tuples = session.open_cursor("table:tuples", null, null);
-    session.create("index:tuples:index", "columns=(key,value)");
-    reversed = session.open_cursor("index:tuples:index(uid)", null, null);
+    session.create("table:values", "key_format=Su,value_format=S,columns=(key,value,pad)");
+    values = session.open_cursor("table:values", null, null);
+    session.create("table:out", "key_format=qSqq,value_format=S,columns=(src,label,dst,edge,pad)");
+    session.create("table:in", "key_format=qSqq,value_format=S,columns=(dst,label,src,edge,pad)");
+    out = session.open_cursor("table:out", null, null);
+    in = session.open_cursor("table:in", null, null);
+  }
+
+  // the object's config in the metadata, null when it does not exist
+  private String metadata(String uri) {
+    Cursor c = session.open_cursor("metadata:", null, null);
+    c.putKeyString(uri);
+    String ret = c.search() == 0 ? c.getValueString() : null;
+    c.close();
+    return ret;
+  }
+
+  private void link(long start, String label, long end, long edge) {
+    out.putKeyLong(start);
+    out.putKeyString(label);
+    out.putKeyLong(end);
+    out.putKeyLong(edge);
+    out.putValueString("");
+    out.insert();
+    in.putKeyLong(end);
+    in.putKeyString(label);
+    in.putKeyLong(start);
+    in.putKeyLong(edge);
+    in.putValueString("");
+    in.insert();
+  }
+
+  private void unlink(long start, String label, long end, long edge) {
+    out.putKeyLong(start);
+    out.putKeyString(label);
+    out.putKeyLong(end);
+    out.putKeyLong(edge);
+    if(out.search() == 0) {
+      out.putKeyLong(start);
+      out.putKeyString(label);
+      out.putKeyLong(end);
+      out.putKeyLong(edge);
+      out.remove();
+    }
+    out.reset();
+    in.putKeyLong(end);
+    in.putKeyString(label);
+    in.putKeyLong(start);
+    in.putKeyLong(edge);
+    if(in.search() == 0) {
+      in.putKeyLong(end);
+      in.putKeyString(label);
+      in.putKeyLong(start);
+      in.putKeyLong(edge);
+      in.remove();
+    }
+    in.reset();
+  }
+
+  public interface AdjacencyConsumer {
+    void accept(long neighbor, String label, long edge);
+  }
+
+  /**
+   * Visits the adjacency rows of a vertex in one prefix scan, with label
+   * null for every label. Nothing but the rows themselves is read.
+   */
+  private void adjacency(Cursor c, long vid, String label, AdjacencyConsumer consumer) {
+    c.putKeyLong(vid);
+    c.putKeyString(label == null ? "" : label);
+    c.putKeyLong(Long.MIN_VALUE);
+    c.putKeyLong(Long.MIN_VALUE);
+    SearchStatus st = c.search_near();
+    boolean valid = st != SearchStatus.NOTFOUND && (st != SearchStatus.SMALLER || c.next() == 0);
+    while(valid) {
+      long v = c.getKeyLong();
+      String l = c.getKeyString();
+      long neighbor = c.getKeyLong();
+      long edge = c.getKeyLong();
+      if(v != vid || (label != null && !label.equals(l)))
+        break;
+      consumer.accept(neighbor, l, edge);
+      valid = c.next() == 0;
+    }
+    c.reset();
   }
 
   private long next_uid() {
@@ -119,189 +251,508 @@ public class GremlinDB {
     return uids.getKeyRecord();
   }
 
-  private void delete(long uid) {
-    uids.putKeyRecord(uid);
-    if(uids.search()==0) {
-      uids.putKeyRecord(uids.getKeyRecord());
-      uids.remove();
-    }
-    uids.reset();
-
+  // removes the tuples of uid and their index rows
+  private void clear(long uid) {
+    List<String> keys = new ArrayList<String>();
+    List<byte[]> vals = new ArrayList<byte[]>();
     tuples.putKeyLong(uid);
     tuples.putKeyString("");
     SearchStatus st = tuples.search_near();
-    switch(st) {
-    case NOTFOUND:
-      tuples.reset();
-      break;
-    default:
-      while(true) {
-        long tid = tuples.getKeyLong();
-        String key = tuples.getKeyString();
-        if(tid == uid) {
-          tuples.remove();
-          if(tuples.next()!=0) {
-            tuples.reset();
-            break;
-          }
-        } {
-          tuples.reset();
-          break;
-        }
-      }
-      break;
+    boolean valid = st != SearchStatus.NOTFOUND && (st != SearchStatus.SMALLER || tuples.next() == 0);
+    while(valid) {
+      long tid = tuples.getKeyLong();
+      String key = tuples.getKeyString();
+      if(tid != uid)
+        break;
+      keys.add(key);
+      vals.add(tuples.getValueByteArray());
+      valid = tuples.next() == 0;
+    }
+    tuples.reset();
+    for(int i = 0; i < keys.size(); i++) {
+      tuples.putKeyLong(uid);
+      tuples.putKeyString(keys.get(i));
+      tuples.remove();
+      values.putKeyString(keys.get(i));
+      values.putKeyByteArray(indexKey(vals.get(i), uid));
+      values.remove();
     }
   }
 
+  private static byte[] indexKey(byte[] value, long uid) {
+    byte[] k = Arrays.copyOf(value, value.length + 8);
+    for(int i = 0; i < 8; i++)
+      k[value.length + i] = (byte)(uid >>> (56 - i * 8));
+    return k;
+  }
+
   private void update(long uid, Map<String, Object> props) {
-    delete(uid);
+    clear(uid);
     props.forEach((k,v) -> {
+        byte[] value = PropertyCodec.encode(v);
         tuples.putKeyLong(uid);
         tuples.putKeyString(k);
-        tuples.putValueString(gson.toJson(v));
+        tuples.putValueByteArray(value);
         tuples.insert();
+        values.putKeyString(k);
+        values.putKeyByteArray(indexKey(value, uid));
+        values.putValueString("");
+        values.insert();
       }
       );
   }
 
-  private class ElementSpliterator implements  Spliterator.OfLong {
-    private String key;
-    private Object value;
+  /**
+   * Elements of one kind with uids in [lo, hi), read by scanning the tuples
+   * table, whose rows of an element are contiguous. A split reads on its own
+   * session and cursor, opened by the thread that traverses it and closed
+   * once it is exhausted, so splits run in parallel with each other and
+   * with calls on the shared session. trySplit hands over the upper half of
+   * the uids not read yet. Each split reads its own snapshot, taken when it
+   * starts, so a parallel scan is not one point-in-time view. Reads hold the
+   * read side of closing, like fetch().
+   */
+  private class ElementSpliterator<T extends Element> implements Spliterator<T> {
+    private static final long MIN_SPLIT = 1024;
+
+    private final Long kind;
+    private final Queue<ElementSpliterator<?>> open;
+    private long lo;
+    private long hi;
+    private Session session;
+    private Cursor cursor;
+    private boolean valid;
+    private long rowUid;
+    private String rowKey;
+    private byte[] rowValue;
+
+    ElementSpliterator(long kind, long lo, long hi, Queue<ElementSpliterator<?>> open) {
+      this.kind = kind;
+      this.lo = lo;
+      this.hi = hi;
+      this.open = open;
+    }
 
-    public ElementSpliterator(String key, Object value) {
-      this.key = key;
-      this.value = value;
+    private void start() {
+      session = conn.open_session(null);
+      open.add(this);
+      session.begin_transaction("isolation=snapshot");
+      cursor = session.open_cursor("table:tuples", null, null);
+      cursor.putKeyLong(lo);
+      cursor.putKeyString("");
+      SearchStatus st = cursor.search_near();
+      valid = st != SearchStatus.NOTFOUND && (st != SearchStatus.SMALLER || cursor.next() == 0);
+      read();
     }
 
-    @Override
-    public int characteristics() {
-      return DISTINCT | NONNULL | IMMUTABLE;
+    private void read() {
+      if(!valid)
+        return;
+      rowUid = cursor.getKeyLong();
+      rowKey = cursor.getKeyString();
+      rowValue = cursor.getValueByteArray();
+      valid = rowUid < hi;
     }
 
-    @Override
-    public long estimateSize() {
-      return Long.MAX_VALUE;
+    private void advance() {
+      valid = cursor.next() == 0;
+      read();
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(Consumer<? super T> action) {
+      Map<String, Object> props = null;
+      long uid = 0;
+      closing.readLock().lock();
+      try {
+        if(closed)
+          throw new IllegalStateException("GremlinDB " + db + " is closed");
+        if(session == null) {
+          if(lo >= hi)
+            return false;
+          start();
+        }
+        while(valid && props == null) {
+          uid = rowUid;
+          Map<String, Object> row = new HashMap<String, Object>();
+          while(valid && rowUid == uid) {
+            row.put(rowKey, PropertyCodec.decode(rowValue));
+            advance();
+          }
+          lo = uid + 1;
+          if(kind.equals(row.get("__kind__")))
+            props = row;
+        }
+        if(props == null)
+          finish();
+      } finally {
+        closing.readLock().unlock();
+      }
+      if(props == null)
+        return false;
+      action.accept((T)element(uid, props));
+      return true;
     }
 
-    public boolean tryAdvance(LongConsumer action) {
-      String akey = reversed.getKeyString();
-      String aval = reversed.getKeyString();
-      String v = value.toString();
-      if(key.equals(akey) && v.equals(aval)) {
-        action.accept(reversed.getValueLong());
+    // closing the connection already closed the session
+    void finish() {
+      closing.readLock().lock();
+      try {
+        if(session == null)
+          return;
+        open.remove(this);
+        valid = false;
+        lo = hi;
+        if(!closed) {
+          session.rollback_transaction(null);
+          session.close(null);
+        }
+        session = null;
+        cursor = null;
+      } finally {
+        closing.readLock().unlock();
       }
-      if(reversed.next()==0)
-        return true;
-      reversed.reset();
-      return false;
     }
 
-    public Spliterator.OfLong trySplit() {
-      return null;
+    public Spliterator<T> trySplit() {
+      if(session != null && !valid)
+        return null;
+      long from = session == null ? lo : Math.max(lo, rowUid + 1);
+      if(hi - from < MIN_SPLIT)
+        return null;
+      long mid = from + (hi - from) / 2;
+      ElementSpliterator<T> s = new ElementSpliterator<T>(kind, mid, hi, open);
+      hi = mid;
+      return s;
+    }
+
+    public long estimateSize() {
+      return hi - lo;
+    }
+
+    public int characteristics() {
+      return ORDERED | DISTINCT | NONNULL;
     }
   }
 
-  private LongStream index(String key, Object value) {
-    String val = gson.toJson(value);
-    reversed.putKeyString(key);
-    reversed.putKeyString(val);
-    if(reversed.search() == 0) {
-      return StreamSupport.longStream(new ElementSpliterator(key, value), false);
+  private long maxUid() {
+    Session s = conn.open_session(null);
+    try {
+      Cursor c = s.open_cursor("table:tuples", null, null);
+      long max = c.prev() == 0 ? c.getKeyLong() : 0;
+      c.close();
+      return max;
+    } finally {
+      s.close(null);
     }
-    reversed.reset();
-    return LongStream.empty();
   }
 
-  private Object key(long uid, String key) {
-    Object ret = "{}";
+  /**
+   * Every element of the kind in uid order. Call parallel() to split the
+   * uid range across cores; close the stream when it is not consumed to
+   * the end, so splits still open release their sessions.
+   */
+  private <T extends Element> Stream<T> elements(int kind) {
+    Queue<ElementSpliterator<?>> open = new ConcurrentLinkedQueue<ElementSpliterator<?>>();
+    return StreamSupport.stream(new ElementSpliterator<T>(kind, 1, maxUid() + 1, open), false)
+      .onClose(() -> {
+          ElementSpliterator<?> s;
+          while((s = open.poll()) != null)
+            s.finish();
+        });
+  }
+
+  private byte[] key(long uid, String key) {
+    byte[] ret = null;
     tuples.putKeyLong(uid);
     tuples.putKeyString(key);
     if(tuples.search() == 0) {
-      ret = tuples.getValueString();
+      ret = tuples.getValueByteArray();
     }
     tuples.reset();
     return ret;
   }
 
+  private long ref(long uid, String key) {
+    byte[] v = key(uid, key);
+    try {
+      return v == null ? -1 : PropertyCodec.longValue(v);
+    } catch(IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  private String label(long uid) {
+    byte[] v = key(uid, "__label__");
+    Object l = v == null ? null : PropertyCodec.decode(v);
+    return l instanceof String ? (String)l : "";
+  }
+
   public Element get(long uid) {
-    Element ret = null;
-    tuples.putKeyLong(uid);
-    SearchStatus st = tuples.search_near();
-    if (st != SearchStatus.NOTFOUND) {
-      if(st == SearchStatus.SMALLER) {
-        if(tuples.next() != 0)
-          return ret;
-      }
-      Map<String, Object> props = new HashMap<String, Object>();
+    Map<String, Object> props = read(tuples, uid);
+    return props.isEmpty() ? null : element(uid, props);
+  }
+
+  private static Map<String, Object> read(Cursor c, long uid) {
+    c.putKeyLong(uid);
+    c.putKeyString("");
+    SearchStatus st = c.search_near();
+    Map<String, Object> props = new HashMap<String, Object>();
+    if(st != SearchStatus.NOTFOUND && (st != SearchStatus.SMALLER || c.next() == 0)) {
       do {
-        long tid = tuples.getKeyLong();
-        String key = tuples.getKeyString();
+        long tid = c.getKeyLong();
+        String key = c.getKeyString();
         if(tid == uid) {
-          props.put(key, tuples.getValueString());
+          props.put(key, PropertyCodec.decode(c.getValueByteArray()));
         } else
           break;
-      } while(tuples.next() == 0);
-      int kind = Integer.parseInt((String)props.get("__kind__"));
-      if(kind == VERTEX_KIND) {
-        ret = new Vertex(uid, props);
-      } else {
-        long start = Integer.parseInt((String)props.get("__start__"));
-        long end = Integer.parseInt((String)props.get("__end__"));
-        ret = new Edge(uid, (Vertex)get(start), (Vertex)get(end), props);
+      } while(c.next() == 0);
+    }
+    c.reset();
+    return props;
+  }
+
+  // properties of a vertex read on a session of its own, for lazy endpoints
+  private Map<String, Object> fetch(long uid) {
+    closing.readLock().lock();
+    try {
+      if(closed)
+        throw new IllegalStateException("GremlinDB " + db + " is closed");
+      Session s = conn.open_session(null);
+      try {
+        Cursor c = s.open_cursor("table:tuples", null, null);
+        Map<String, Object> props = read(c, uid);
+        c.close();
+        return Long.valueOf(VERTEX_KIND).equals(props.get("__kind__")) ? props : new HashMap<String, Object>();
+      } finally {
+        s.close(null);
       }
+    } finally {
+      closing.readLock().unlock();
+    }
+  }
+
+  /**
+   * The vertices among uids, by uid, read in one pass over tuples in uid
+   * order. Consecutive uids are read without seeking again.
+   */
+  public Map<Long, Vertex> vertexes(long... uids) {
+    long[] sorted = LongStream.of(uids).sorted().distinct().toArray();
+    Map<Long, Vertex> ret = new HashMap<Long, Vertex>();
+    boolean valid = false;
+    long tid = -1;
+    String key = null;
+    byte[] value = null;
+    for(long uid : sorted) {
+      if(valid && tid > uid)
+        continue;
+      if(!valid || tid < uid) {
+        tuples.putKeyLong(uid);
+        tuples.putKeyString("");
+        SearchStatus st = tuples.search_near();
+        valid = st != SearchStatus.NOTFOUND && (st != SearchStatus.SMALLER || tuples.next() == 0);
+        if(valid) {
+          tid = tuples.getKeyLong();
+          key = tuples.getKeyString();
+          value = tuples.getValueByteArray();
+        }
+      }
+      Map<String, Object> props = new HashMap<String, Object>();
+      while(valid && tid == uid) {
+        props.put(key, PropertyCodec.decode(value));
+        valid = tuples.next() == 0;
+        if(valid) {
+          tid = tuples.getKeyLong();
+          key = tuples.getKeyString();
+          value = tuples.getValueByteArray();
+        }
+      }
+      if(Long.valueOf(VERTEX_KIND).equals(props.get("__kind__")))
+        ret.put(uid, new Vertex(uid, props));
     }
     tuples.reset();
     return ret;
   }
 
+  /**
+   * Loads the endpoints of edges not loaded yet with one vertexes() pass.
+   * It reads on the GremlinDB's own session: call it from one thread on
+   * edges collected out of a stream, not from inside a parallel stream, and
+   * before close(); endpoints left unloaded load one by one on access.
+   */
+  public void loadEndpoints(Collection<Edge> edges) {
+    LongStream.Builder b = LongStream.builder();
+    for(Edge e : edges) {
+      if(!e.start.loaded())
+        b.add(e.start.uid);
+      if(!e.end.loaded())
+        b.add(e.end.uid);
+    }
+    Map<Long, Vertex> vs = vertexes(b.build().toArray());
+    for(Edge e : edges) {
+      for(Vertex v : new Vertex[]{e.start, e.end}) {
+        if(!v.loaded()) {
+          Vertex l = vs.get(v.uid);
+          v.fill(l != null ? l.props : new HashMap<String, Object>());
+        }
+      }
+    }
+  }
+
+  // builds the element from its tuples; edge endpoints are left unloaded
+  private Element element(long uid, Map<String, Object> props) {
+    if(((Long)props.get("__kind__")).longValue() == VERTEX_KIND)
+      return new Vertex(uid, props);
+    long start = (Long)props.get("__start__");
+    long end = (Long)props.get("__end__");
+    String label = props.containsKey("__label__") ? (String)props.get("__label__") : "";
+    return new Edge(uid, new Vertex(start, this), label, new Vertex(end, this), props);
+  }
+
   public Element save(Element element) {
     if(element instanceof Vertex) {
       Vertex v = (Vertex)element;
       long uid = v.uid==-1? next_uid() : v.uid;
       v.uid = uid;
-      Map<String, Object> props = new HashMap<String, Object>(v.props);
+      Map<String, Object> props = new HashMap<String, Object>(v.props());
       props.put("__kind__", VERTEX_KIND);
       update(v.uid, props);
     } else {
       Edge e = (Edge)element;
+      if(e.uid != -1) {
+        long start = ref(e.uid, "__start__");
+        long end = ref(e.uid, "__end__");
+        if(start >= 0 && end >= 0)
+          unlink(start, label(e.uid), end, e.uid);
+      }
       long uid = e.uid==-1? next_uid() : e.uid;
       e.uid = uid;
+      if(e.label == null)
+        e.label = "";
       Map<String, Object> props = new HashMap<String, Object>(e.props);
       props.put("__kind__", EDGE_KIND);
+      props.put("__label__", e.label);
       props.put("__start__", e.start.uid == -1? save(e.start).uid() : e.start.uid);
       props.put("__end__", e.end.uid == -1? save(e.end).uid() : e.end.uid);
       update(e.uid, props);
+      link(e.start.uid, e.label, e.end.uid, e.uid);
     }
     return element;
   }
 
   public void close() {
-    session.close(null);
-    conn.close(null);
+    closing.writeLock().lock();
+    try {
+      closed = true;
+      session.close(null);
+      conn.close(null);
+    } finally {
+      closing.writeLock().unlock();
+    }
   }
 
   public Stream<Vertex> vertexes() {
-    return index("__kind__", VERTEX_KIND).mapToObj(uid -> (Vertex)get(uid));
+    return elements(VERTEX_KIND);
   }
 
   public Stream<Edge> edges() {
-    return index("__kind__", EDGE_KIND).mapToObj(uid -> (Edge)get(uid));
+    return elements(EDGE_KIND);
   }
 
   public Stream<Edge> incomings(Vertex v) {
-    return index("__end__", v.uid()).mapToObj(uid -> (Edge)get(uid));
+    return inEdges(v.uid(), null).mapToObj(uid -> (Edge)get(uid));
   }
 
   public Stream<Edge> outgoings(Vertex v) {
-    return index("__start__", v.uid()).mapToObj(uid -> (Edge)get(uid));
+    return outEdges(v.uid(), null).mapToObj(uid -> (Edge)get(uid));
+  }
+
+  public void outAdjacency(long vid, String label, AdjacencyConsumer consumer) {
+    adjacency(out, vid, label, consumer);
+  }
+
+  public void inAdjacency(long vid, String label, AdjacencyConsumer consumer) {
+    adjacency(in, vid, label, consumer);
+  }
+
+  /**
+   * Uids of the vertices vid links to over label, or over any label when
+   * label is null, without loading any properties.
+   */
+  public LongStream outNeighbors(long vid, String label) {
+    LongStream.Builder b = LongStream.builder();
+    adjacency(out, vid, label, (n, l, e) -> b.add(n));
+    return b.build();
+  }
+
+  public LongStream inNeighbors(long vid, String label) {
+    LongStream.Builder b = LongStream.builder();
+    adjacency(in, vid, label, (n, l, e) -> b.add(n));
+    return b.build();
+  }
+
+  public LongStream outEdges(long vid, String label) {
+    LongStream.Builder b = LongStream.builder();
+    adjacency(out, vid, label, (n, l, e) -> b.add(e));
+    return b.build();
+  }
+
+  public LongStream inEdges(long vid, String label) {
+    LongStream.Builder b = LongStream.builder();
+    adjacency(in, vid, label, (n, l, e) -> b.add(e));
+    return b.build();
   }
 
   public Vertex start(Edge e) {
-    return (Vertex)get((Long)key(e.uid(), "__start__"));
+    return (Vertex)get(ref(e.uid(), "__start__"));
   }
 
   public Vertex end(Edge e) {
-    return (Vertex)get((Long)key(e.uid(), "__end"));
+    return (Vertex)get(ref(e.uid(), "__end__"));
+  }
+
+  /**
+   * Uids of the elements whose property key is in [from, to), in property
+   * order; a null bound is open. Bounds compare within their type: longs
+   * with longs, strings with strings.
+   */
+  public LongStream range(String key, Object from, Object to) {
+    return scan(key, from == null ? new byte[]{0} : PropertyCodec.encode(from), to == null ? null : PropertyCodec.encode(to), false);
+  }
+
+  /**
+   * Uids of the elements whose property key equals value.
+   */
+  public LongStream lookup(String key, Object value) {
+    byte[] v = PropertyCodec.encode(value);
+    return scan(key, v, v, true);
+  }
+
+  private LongStream scan(String key, byte[] lo, byte[] hi, boolean inclusive) {
+    LongStream.Builder b = LongStream.builder();
+    values.putKeyString(key);
+    values.putKeyByteArray(lo);
+    SearchStatus st = values.search_near();
+    boolean valid = st != SearchStatus.NOTFOUND && (st != SearchStatus.SMALLER || values.next() == 0);
+    while(valid) {
+      String k = values.getKeyString();
+      byte[] v = values.getKeyByteArray();
+      if(!k.equals(key))
+        break;
+      int n = v.length - 8;
+      if(hi != null) {
+        int c = PropertyCodec.compare(v, n, hi, hi.length);
+        if(c > 0 || (c == 0 && !inclusive))
+          break;
+      }
+      long uid = 0;
+      for(int i = n; i < v.length; i++)
+        uid = (uid << 8) | (v[i] & 0xFF);
+      b.add(uid);
+      valid = values.next() == 0;
+    }
+    values.reset();
+    return b.build();
   }
 
   private static void test1() {
@@ -330,11 +781,20 @@ public class GremlinDB {
       Map<String, Object> props = new HashMap();
       props.put("prop1", "somevalue");
       props.put("prop2",i*1000);
-      es[i] = new Edge(vs[i], vs[ec+i], props);
+      es[i] = new Edge(vs[i], "knows", vs[ec+i], props);
       gdb.save(es[i]);
     }
     gdb.vertexes().forEach(System.out::println);
-    gdb.edges().forEach(System.out::println);
+    List<Edge> edges;
+    try(Stream<Edge> s = gdb.edges()) {
+      edges = s.collect(Collectors.toList());
+    }
+    gdb.loadEndpoints(edges);
+    for(Edge e : edges)
+      log.info("{} {}", e, e.start);
+    for(int i = 0; i < ec; i++)
+      log.info("{} knows {}", vs[i].uid, Arrays.toString(gdb.outNeighbors(vs[i].uid, "knows").toArray()));
+    log.info("prop2 in [1000, 3000): {}", Arrays.toString(gdb.range("prop2", 1000, 3000).toArray()));
     gdb.close();
   }
 
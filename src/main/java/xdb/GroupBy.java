@@ -0,0 +1,163 @@
+package xdb;
+
+import java.util.*;
+
+/**
+ * Streaming group by (host, metric) with count, sum, min and max. Rows are
+ * folded in as they come off the cursor: host and metric are dictionary
+ * encoded to ints, the pair packed into one long and looked up in an open
+ * addressing table of primitive arrays, so no row or boxed key is ever kept.
+ * Not thread safe; every analyst owns its own.
+ */
+public class GroupBy {
+  private static final long EMPTY = -1L;
+
+  public static class Dict {
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private final ArrayList<String> names = new ArrayList<String>();
+
+    public int id(String name) {
+      Integer id = ids.get(name);
+      if(id == null) {
+        id = names.size();
+        ids.put(name, id);
+        names.add(name);
+      }
+      return id;
+    }
+
+    public String name(int id) {
+      return names.get(id);
+    }
+
+    public int size() {
+      return names.size();
+    }
+  }
+
+  public interface GroupConsumer {
+    void accept(String host, String metric, long count, double sum, double min, double max);
+  }
+
+  private final Dict hosts;
+  private final Dict metrics;
+  private long[] keys;
+  private long[] counts;
+  private double[] sums;
+  private double[] mins;
+  private double[] maxs;
+  private int size;
+  private long rows;
+
+  public GroupBy() {
+    this(new Dict(), new Dict(), 1024);
+  }
+
+  public GroupBy(Dict hosts, Dict metrics, int capacity) {
+    this.hosts = hosts;
+    this.metrics = metrics;
+    allocate(Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1);
+  }
+
+  private void allocate(int cap) {
+    keys = new long[cap];
+    Arrays.fill(keys, EMPTY);
+    counts = new long[cap];
+    sums = new double[cap];
+    mins = new double[cap];
+    maxs = new double[cap];
+    size = 0;
+  }
+
+  private static int mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int)key;
+  }
+
+  public void accept(String host, String metric, double val) {
+    accept(hosts.id(host), metrics.id(metric), val);
+  }
+
+  public void accept(int host, int metric, double val) {
+    long key = ((long)host << 32) | (metric & 0xFFFFFFFFL);
+    int mask = keys.length - 1;
+    int i = mix(key) & mask;
+    while(keys[i] != key) {
+      if(keys[i] == EMPTY) {
+        if(size + 1 > keys.length * 3 / 4) {
+          grow();
+          accept(host, metric, val);
+          return;
+        }
+        keys[i] = key;
+        counts[i] = 0;
+        sums[i] = 0;
+        mins[i] = Double.POSITIVE_INFINITY;
+        maxs[i] = Double.NEGATIVE_INFINITY;
+        size++;
+        break;
+      }
+      i = (i + 1) & mask;
+    }
+    counts[i]++;
+    sums[i] += val;
+    if(val < mins[i]) mins[i] = val;
+    if(val > maxs[i]) maxs[i] = val;
+    rows++;
+  }
+
+  private void grow() {
+    long[] k = keys;
+    long[] c = counts;
+    double[] s = sums;
+    double[] lo = mins;
+    double[] hi = maxs;
+    allocate(k.length << 1);
+    int mask = keys.length - 1;
+    for(int j = 0; j < k.length; j++) {
+      if(k[j] == EMPTY)
+        continue;
+      int i = mix(k[j]) & mask;
+      while(keys[i] != EMPTY)
+        i = (i + 1) & mask;
+      keys[i] = k[j];
+      counts[i] = c[j];
+      sums[i] = s[j];
+      mins[i] = lo[j];
+      maxs[i] = hi[j];
+      size++;
+    }
+  }
+
+  /**
+   * Number of distinct (host, metric) groups.
+   */
+  public int size() {
+    return size;
+  }
+
+  public long rows() {
+    return rows;
+  }
+
+  public void forEach(GroupConsumer consumer) {
+    for(int i = 0; i < keys.length; i++) {
+      if(keys[i] == EMPTY)
+        continue;
+      consumer.accept(hosts.name((int)(keys[i] >>> 32)), metrics.name((int)keys[i]),
+                      counts[i], sums[i], mins[i], maxs[i]);
+    }
+  }
+
+  /**
+   * Empties the groups but keeps the table and the dictionaries.
+   */
+  public void clear() {
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+    rows = 0;
+  }
+
+}
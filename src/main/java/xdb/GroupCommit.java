@@ -0,0 +1,199 @@
+package xdb;
+
+import com.wiredtiger.db.*;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Group commit for WiredTiger inserts. Producers hand rows to insert() and
+ * get a future back; one committer thread drains them into a single
+ * transaction that commits once maxBatch rows are collected or the oldest
+ * row has waited maxLatency milliseconds, whichever comes first. The
+ * futures complete when that transaction has committed.
+ */
+public class GroupCommit implements Runnable, AutoCloseable {
+  private static Logger log = LogManager.getLogger(GroupCommit.class);
+
+  private static final int RETRIES = 3;
+
+  private final Connection conn;
+  private final int maxBatch;
+  private final long maxLatency;
+  private final String commitConfig;
+  private final BlockingQueue<Pending> queue;
+  private final Thread committer;
+  // insert() checks stop and queues under the read side, close() sets stop
+  // under the write side, so no row is queued after the committer's last poll
+  private final ReentrantReadWriteLock closing;
+  private volatile boolean stop;
+  private long batches;
+  private long rows;
+
+  static class Pending {
+    final String table;
+    final Consumer<Cursor> writer;
+    final CompletableFuture<Void> done;
+    final long nanos;
+
+    Pending(String table, Consumer<Cursor> writer) {
+      this.table = table;
+      this.writer = writer;
+      this.done = new CompletableFuture<Void>();
+      this.nanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * commitConfig is passed to commit_transaction, e.g. "sync=on" when the
+   * connection logs and the futures must mean durable on disk.
+   */
+  public GroupCommit(Connection conn, int maxBatch, long maxLatency, String commitConfig) {
+    this.conn = conn;
+    this.maxBatch = maxBatch;
+    this.maxLatency = maxLatency;
+    this.commitConfig = commitConfig;
+    this.queue = new ArrayBlockingQueue<Pending>(maxBatch * 4);
+    this.stop = false;
+    this.closing = new ReentrantReadWriteLock();
+    this.committer = new Thread(this, "group-commit");
+    this.committer.start();
+  }
+
+  /**
+   * Queues a row; the writer sets key and value on a cursor over the table.
+   * Blocks while the queue is full.
+   */
+  public CompletableFuture<Void> insert(String table, Consumer<Cursor> writer) {
+    Pending p = new Pending(table, writer);
+    closing.readLock().lock();
+    try {
+      if(stop)
+        throw new IllegalStateException("group commit is closed");
+      queue.put(p);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      p.done.completeExceptionally(e);
+    } finally {
+      closing.readLock().unlock();
+    }
+    return p.done;
+  }
+
+  public void run() {
+    Session session = conn.open_session(null);
+    Map<String, Cursor> cursors = new HashMap<String, Cursor>();
+    List<Pending> batch = new ArrayList<Pending>(maxBatch);
+    while(!stop || !queue.isEmpty()) {
+      try {
+        Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if(first == null)
+          continue;
+        batch.add(first);
+        long deadline = first.nanos + TimeUnit.MILLISECONDS.toNanos(maxLatency);
+        while(batch.size() < maxBatch) {
+          long wait = deadline - System.nanoTime();
+          Pending p = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+          if(p == null)
+            break;
+          batch.add(p);
+        }
+      } catch(InterruptedException e) {}
+      if(batch.isEmpty())
+        continue;
+      commit(session, cursors, batch);
+      batch.clear();
+    }
+    for(Cursor c : cursors.values())
+      c.close();
+    session.close(null);
+    log.info("group commit stops after {} batches, {} rows", batches, rows);
+  }
+
+  private void commit(Session session, Map<String, Cursor> cursors, List<Pending> batch) {
+    List<Pending> live = new ArrayList<Pending>(batch);
+    Set<String> used = new HashSet<String>();
+    RuntimeException error = null;
+    int rollbacks = 0;
+    while(!live.isEmpty()) {
+      boolean done = false;
+      Pending current = null;
+      try {
+        session.begin_transaction(null);
+        for(Pending p : live) {
+          current = p;
+          Cursor c = cursors.get(p.table);
+          if(c == null) {
+            c = session.open_cursor(p.table, null, null);
+            cursors.put(p.table, c);
+          }
+          used.add(p.table);
+          p.writer.accept(c);
+          c.insert();
+        }
+        current = null;
+        session.commit_transaction(commitConfig);
+        done = true;
+        error = null;
+        break;
+      } catch(WiredTigerRollbackException e) {
+        error = e;
+        if(++rollbacks >= RETRIES)
+          break;
+      } catch(RuntimeException e) {
+        error = e;
+        if(current == null)
+          break;
+        // only the row that failed is rejected, the rest go again without it
+        log.info("group commit rejects a row of {}: {}", current.table, e);
+        current.done.completeExceptionally(e);
+        live.remove(current);
+      } finally {
+        if(!done) {
+          try {
+            session.rollback_transaction(null);
+          } catch(WiredTigerException e) {}
+        }
+      }
+    }
+    // cursors on tables this batch did not touch are closed so they never block a drop
+    Iterator<Map.Entry<String, Cursor>> it = cursors.entrySet().iterator();
+    while(it.hasNext()) {
+      Map.Entry<String, Cursor> e = it.next();
+      if(!used.contains(e.getKey())) {
+        e.getValue().close();
+        it.remove();
+      }
+    }
+    if(live.isEmpty())
+      return;
+    if(error != null) {
+      log.info("group commit of {} rows failed: {}", live.size(), error);
+      for(Pending p : live)
+        p.done.completeExceptionally(error);
+      return;
+    }
+    batches++;
+    rows += live.size();
+    for(Pending p : live)
+      p.done.complete(null);
+  }
+
+  public void close() {
+    closing.writeLock().lock();
+    try {
+      stop = true;
+    } finally {
+      closing.writeLock().unlock();
+    }
+    try {
+      committer.join();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
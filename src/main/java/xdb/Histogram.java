@@ -0,0 +1,119 @@
+package xdb;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * High dynamic range histogram of nanosecond latencies. Buckets are
+ * log-linear: 64 linear sub-buckets per power of two, so any recorded value
+ * is reported within 1.6% of itself from 1ns up to Long.MAX_VALUE, in a
+ * fixed 3712 slot array. Recording is lock free and safe from any thread.
+ */
+public class Histogram {
+  private static final int SUB_BITS = 7;
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int HALF = SUB >> 1;
+  private static final int SLOTS = SUB + (64 - SUB_BITS - 1) * HALF;
+
+  private final AtomicLongArray counts;
+  private final AtomicLong count;
+  private final AtomicLong sum;
+  private final AtomicLong max;
+
+  public Histogram() {
+    this.counts = new AtomicLongArray(SLOTS);
+    this.count = new AtomicLong();
+    this.sum = new AtomicLong();
+    this.max = new AtomicLong();
+  }
+
+  static int index(long v) {
+    if(v < SUB)
+      return v < 0 ? 0 : (int)v;
+    int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+    return SUB + (shift - 1) * HALF + (int)((v >>> shift) - HALF);
+  }
+
+  // highest value that falls in the slot
+  static long upper(int idx) {
+    if(idx < SUB)
+      return idx;
+    int k = idx - SUB;
+    int shift = k / HALF + 1;
+    long m = k % HALF + HALF;
+    return ((m + 1) << shift) - 1;
+  }
+
+  public void record(long nanos) {
+    if(nanos < 0)
+      nanos = 0;
+    counts.incrementAndGet(index(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double)sum.get() / n;
+  }
+
+  /**
+   * The value at the percentile (0 to 100), 0 when nothing was recorded.
+   */
+  public long percentile(double p) {
+    long n = count.get();
+    if(n == 0)
+      return 0;
+    long target = Math.max(1, (long)Math.ceil(p / 100 * n));
+    long seen = 0;
+    for(int i = 0; i < SLOTS; i++) {
+      seen += counts.get(i);
+      if(seen >= target)
+        return Math.min(upper(i), max.get());
+    }
+    return max.get();
+  }
+
+  public void add(Histogram other) {
+    for(int i = 0; i < SLOTS; i++) {
+      long c = other.counts.get(i);
+      if(c != 0)
+        counts.addAndGet(i, c);
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+    max.accumulateAndGet(other.max.get(), Math::max);
+  }
+
+  /**
+   * Copies the histogram and clears it, for interval reports. A value
+   * recorded while this runs may be counted in either interval.
+   */
+  public Histogram interval() {
+    Histogram h = new Histogram();
+    for(int i = 0; i < SLOTS; i++) {
+      long c = counts.getAndSet(i, 0);
+      if(c != 0)
+        h.counts.set(i, c);
+    }
+    h.count.set(count.getAndSet(0));
+    h.sum.set(sum.getAndSet(0));
+    h.max.set(max.getAndSet(0));
+    return h;
+  }
+
+  public String toString() {
+    return String.format(Locale.ROOT, "count=%d mean=%.3fms p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+                         count(), mean() / 1e6, percentile(50) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6, max() / 1e6);
+  }
+
+}
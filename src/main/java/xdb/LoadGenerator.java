@@ -0,0 +1,57 @@
+package xdb;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop, fixed rate load. Operation i is due at start + i * period
+ * whether or not earlier ones finished, and its latency is measured from
+ * that intended start. When the store stalls, every operation queued
+ * behind the stall is charged the time it waited, instead of the stall
+ * showing up once as a single slow sample (coordinated omission).
+ */
+public class LoadGenerator {
+  private final long period;
+  private long start;
+  private long next;
+
+  /**
+   * rate is operations per second for the calling thread.
+   */
+  public LoadGenerator(double rate) {
+    this.period = Math.max(1, (long)(1e9 / rate));
+    this.start = -1;
+  }
+
+  /**
+   * Waits until the next operation is due and returns its intended start.
+   * Returns right away when the schedule is behind.
+   */
+  public long next() {
+    if(start < 0) {
+      start = System.nanoTime();
+      next = start;
+    }
+    long due = next;
+    next += period;
+    long now;
+    while((now = System.nanoTime()) < due)
+      LockSupport.parkNanos(due - now);
+    return due;
+  }
+
+  public interface Op {
+    void run(long seq) throws Exception;
+  }
+
+  /**
+   * Runs n operations on schedule and records their latencies.
+   */
+  public void run(int n, Histogram h, Op op) throws Exception {
+    for(int i = 0; i < n; i++) {
+      long due = next();
+      op.run(i);
+      h.record(System.nanoTime() - due);
+    }
+  }
+
+}
@@ -0,0 +1,288 @@
+package xdb;
+
+import com.wiredtiger.db.*;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.management.StatisticsItem;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.io.*;
+import java.lang.management.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+/**
+ * One registry for engine statistics and application metrics. WiredTiger
+ * statistics cursors, Xodus environment statistics and the JVM's GC and
+ * heap beans are polled on an interval; application counters are striped
+ * LongAdders and latency histograms are read live. Everything is published
+ * as attributes of one JMX bean and as "name value" lines on an HTTP pull
+ * endpoint.
+ */
+public class Metrics implements Runnable, AutoCloseable {
+  private static Logger log = LogManager.getLogger(Metrics.class);
+
+  private final long interval;
+  private final ConcurrentHashMap<String, LongAdder> counters;
+  private final ConcurrentHashMap<String, LongSupplier> gauges;
+  private final ConcurrentHashMap<String, Histogram> histograms;
+  // what report() took out of the live histograms
+  private final ConcurrentHashMap<String, Histogram> totals;
+  private final List<Source> sources;
+  private volatile Map<String, Number> polled;
+  private volatile boolean stop;
+  private HttpServer server;
+  private ObjectName bean;
+
+  interface Source {
+    void poll(Map<String, Number> into);
+    default void close() {}
+  }
+
+  public Metrics(long interval) {
+    this.interval = interval;
+    this.counters = new ConcurrentHashMap<String, LongAdder>();
+    this.gauges = new ConcurrentHashMap<String, LongSupplier>();
+    this.histograms = new ConcurrentHashMap<String, Histogram>();
+    this.totals = new ConcurrentHashMap<String, Histogram>();
+    this.sources = new CopyOnWriteArrayList<Source>();
+    this.polled = Collections.emptyMap();
+    this.stop = false;
+  }
+
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, k -> new LongAdder());
+  }
+
+  public void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  public Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, k -> new Histogram());
+  }
+
+  /**
+   * Polls a statistics cursor, "statistics:" for the connection or
+   * "statistics:table:x" for one table. The connection must be opened with
+   * statistics enabled.
+   */
+  public void wiredtiger(String prefix, Connection conn, String uri) {
+    Session session = conn.open_session(null);
+    sources.add(new Source() {
+        public void poll(Map<String, Number> into) {
+          Cursor c = session.open_cursor(uri, null, null);
+          try {
+            while(c.next() == 0) {
+              String desc = c.getValueString();
+              c.getValueString();
+              into.put(prefix + "." + name(desc), c.getValueLong());
+            }
+          } finally {
+            c.close();
+          }
+        }
+
+        public void close() {
+          session.close(null);
+        }
+      });
+  }
+
+  public void xodus(String prefix, Environment env) {
+    sources.add(into -> {
+        for(String name : env.getStatistics().getItemNames()) {
+          StatisticsItem item = env.getStatistics().getStatisticsItem(name);
+          into.put(prefix + "." + name(name), item.getTotal());
+        }
+      });
+  }
+
+  /**
+   * Collection counts and times of every collector, and heap usage.
+   */
+  public void jvm() {
+    sources.add(into -> {
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+          into.put("jvm.gc." + name(gc.getName()) + ".count", gc.getCollectionCount());
+          into.put("jvm.gc." + name(gc.getName()) + ".ms", gc.getCollectionTime());
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        into.put("jvm.heap.used", heap.getUsed());
+        into.put("jvm.heap.committed", heap.getCommitted());
+      });
+  }
+
+  // "cache: bytes currently in the cache" -> cache_bytes_currently_in_the_cache
+  static String name(String desc) {
+    StringBuilder sb = new StringBuilder(desc.length());
+    boolean sep = false;
+    for(char ch : desc.toLowerCase(Locale.ROOT).toCharArray()) {
+      if((ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9') || ch == '.') {
+        if(sep && sb.length() > 0)
+          sb.append('_');
+        sb.append(ch);
+        sep = false;
+      } else {
+        sep = true;
+      }
+    }
+    return sb.toString();
+  }
+
+  public void poll() {
+    Map<String, Number> into = new HashMap<String, Number>();
+    for(Source s : sources) {
+      try {
+        s.poll(into);
+      } catch(RuntimeException e) {
+        log.info("metrics poll {}", e.getMessage());
+      }
+    }
+    polled = into;
+  }
+
+  /**
+   * The last polled statistics with the current counters, gauges and
+   * histogram percentiles, by name.
+   */
+  public SortedMap<String, Number> snapshot() {
+    TreeMap<String, Number> m = new TreeMap<String, Number>(polled);
+    counters.forEach((k, v) -> m.put(k, v.sum()));
+    gauges.forEach((k, v) -> m.put(k, v.getAsLong()));
+    histograms.forEach((k, live) -> {
+        Histogram h = cumulative(k, live);
+        m.put(k + ".count", h.count());
+        m.put(k + ".p50", h.percentile(50));
+        m.put(k + ".p99", h.percentile(99));
+        m.put(k + ".p999", h.percentile(99.9));
+        m.put(k + ".max", h.max());
+      });
+    return m;
+  }
+
+  private Histogram cumulative(String name, Histogram live) {
+    Histogram h = new Histogram();
+    Histogram total = totals.get(name);
+    if(total != null)
+      h.add(total);
+    h.add(live);
+    return h;
+  }
+
+  /**
+   * Logs the latencies of every histogram recorded since the last report,
+   * one line per phase, and starts the next interval.
+   */
+  public synchronized void report() {
+    new TreeMap<String, Histogram>(histograms).forEach((k, h) -> {
+        Histogram interval = h.interval();
+        totals.computeIfAbsent(k, n -> new Histogram()).add(interval);
+        log.info("{} {}", k, interval);
+      });
+  }
+
+  /**
+   * Logs the latencies of every histogram since it was created.
+   */
+  public synchronized void summary() {
+    new TreeMap<String, Histogram>(histograms).forEach((k, h) -> log.info("{} total {}", k, cumulative(k, h)));
+  }
+
+  public void register(String objectName) throws JMException {
+    bean = new ObjectName(objectName);
+    ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), bean);
+  }
+
+  /**
+   * Serves the snapshot as text on http://host:port/metrics.
+   */
+  public void serve(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/metrics", exchange -> {
+        StringBuilder sb = new StringBuilder();
+        snapshot().forEach((k, v) -> sb.append(k).append(' ').append(v).append('\n'));
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      });
+    server.start();
+    log.info("metrics on port {}", port);
+  }
+
+  class Bean implements DynamicMBean {
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+      Number v = snapshot().get(name);
+      if(v == null)
+        throw new AttributeNotFoundException(name);
+      return v;
+    }
+
+    public AttributeList getAttributes(String[] names) {
+      SortedMap<String, Number> m = snapshot();
+      AttributeList list = new AttributeList();
+      for(String n : names) {
+        if(m.containsKey(n))
+          list.add(new Attribute(n, m.get(n)));
+      }
+      return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+      throw new MBeanException(new UnsupportedOperationException(action));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+      snapshot().forEach((k, v) -> attrs.add(new MBeanAttributeInfo(k, v.getClass().getName(), k, true, false, false)));
+      return new MBeanInfo(Metrics.class.getName(), "xdb metrics", attrs.toArray(new MBeanAttributeInfo[0]),
+                           null, null, null);
+    }
+  }
+
+  public void stop() {
+    stop = true;
+  }
+
+  public void run() {
+    while(!stop) {
+      poll();
+      try {Thread.currentThread().sleep(interval);} catch(InterruptedException ex) {}
+    }
+  }
+
+  /**
+   * Stops serving and closes the sources; join the poll thread first.
+   */
+  public void close() {
+    stop = true;
+    if(server != null)
+      server.stop(0);
+    if(bean != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(bean);
+      } catch(JMException e) {
+        log.info(e);
+      }
+    }
+    for(Source s : sources)
+      s.close();
+  }
+
+}
@@ -0,0 +1,224 @@
+package xdb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Typed, order preserving binary encoding of property values. Encoded
+ * values compare with unsigned byte order the way the values do: null,
+ * false, true, then longs, doubles, strings, byte arrays and lists, each
+ * type ordered by value. Every encoding is self delimiting, so an encoded
+ * value followed by anything still sorts by the value first.
+ *
+ * byte, short, int and long decode as Long; float and double as Double,
+ * with -0.0 before 0.0 and NaN after positive infinity.
+ * Strings and byte arrays escape 0x00 as 0x00 0xFF and end with 0x00 0x01;
+ * a list is its encoded elements followed by 0x00.
+ */
+public class PropertyCodec {
+  static final byte END = 0x00;
+  static final byte NULL = 0x01;
+  static final byte FALSE = 0x02;
+  static final byte TRUE = 0x03;
+  static final byte LONG = 0x10;
+  static final byte DOUBLE = 0x20;
+  static final byte STRING = 0x30;
+  static final byte BYTES = 0x40;
+  static final byte LIST = 0x50;
+
+  private byte[] buf;
+  private int len;
+
+  private PropertyCodec() {
+    this.buf = new byte[32];
+    this.len = 0;
+  }
+
+  public static byte[] encode(Object v) {
+    PropertyCodec c = new PropertyCodec();
+    c.write(v);
+    return Arrays.copyOf(c.buf, c.len);
+  }
+
+  private void ensure(int n) {
+    if(len + n > buf.length)
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+  }
+
+  private void put(byte b) {
+    ensure(1);
+    buf[len++] = b;
+  }
+
+  private void putLong(long v) {
+    ensure(8);
+    for(int i = 7; i >= 0; i--)
+      buf[len++] = (byte)(v >>> (i * 8));
+  }
+
+  private void putEscaped(byte[] b) {
+    ensure(b.length + 2);
+    for(byte x : b) {
+      if(x == 0) {
+        put(END);
+        put((byte)0xFF);
+      } else
+        put(x);
+    }
+    put(END);
+    put((byte)0x01);
+  }
+
+  private void write(Object v) {
+    if(v == null) {
+      put(NULL);
+    } else if(v instanceof Boolean) {
+      put((Boolean)v ? TRUE : FALSE);
+    } else if(v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+      put(LONG);
+      putLong(((Number)v).longValue() ^ Long.MIN_VALUE);
+    } else if(v instanceof Double || v instanceof Float) {
+      long bits = Double.doubleToLongBits(((Number)v).doubleValue());
+      put(DOUBLE);
+      putLong(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+    } else if(v instanceof String) {
+      put(STRING);
+      putEscaped(((String)v).getBytes(StandardCharsets.UTF_8));
+    } else if(v instanceof byte[]) {
+      put(BYTES);
+      putEscaped((byte[])v);
+    } else if(v instanceof Collection) {
+      put(LIST);
+      for(Object o : (Collection<?>)v)
+        write(o);
+      put(END);
+    } else
+      throw new IllegalArgumentException("no encoding for " + v.getClass().getName());
+  }
+
+  public static Object decode(byte[] b) {
+    int[] pos = new int[1];
+    return read(b, pos);
+  }
+
+  /**
+   * The long b encodes, without boxing it.
+   */
+  public static long longValue(byte[] b) {
+    if(b.length != 9 || b[0] != LONG)
+      throw new IllegalArgumentException("not an encoded long");
+    return getLong(b, 1) ^ Long.MIN_VALUE;
+  }
+
+  /**
+   * Length of the encoded value starting at off.
+   */
+  public static int length(byte[] b, int off) {
+    int[] pos = new int[]{off};
+    skip(b, pos);
+    return pos[0] - off;
+  }
+
+  private static long getLong(byte[] b, int off) {
+    long v = 0;
+    for(int i = 0; i < 8; i++)
+      v = (v << 8) | (b[off + i] & 0xFF);
+    return v;
+  }
+
+  // end of the escaped run starting at off, the index of its 0x00 0x01
+  private static int terminator(byte[] b, int off) {
+    int i = off;
+    while(b[i] != END || b[i + 1] != 0x01)
+      i += b[i] == END ? 2 : 1;
+    return i;
+  }
+
+  private static byte[] unescape(byte[] b, int off, int end) {
+    int n = 0;
+    for(int i = off; i < end; i += b[i] == END ? 2 : 1)
+      n++;
+    byte[] r = new byte[n];
+    for(int i = off, j = 0; i < end; i += b[i] == END ? 2 : 1)
+      r[j++] = b[i];
+    return r;
+  }
+
+  private static void skip(byte[] b, int[] pos) {
+    byte tag = b[pos[0]++];
+    switch(tag) {
+    case LONG:
+    case DOUBLE:
+      pos[0] += 8;
+      break;
+    case STRING:
+    case BYTES:
+      pos[0] = terminator(b, pos[0]) + 2;
+      break;
+    case LIST:
+      while(b[pos[0]] != END)
+        skip(b, pos);
+      pos[0]++;
+      break;
+    default:
+      break;
+    }
+  }
+
+  private static Object read(byte[] b, int[] pos) {
+    byte tag = b[pos[0]++];
+    switch(tag) {
+    case NULL:
+      return null;
+    case FALSE:
+      return Boolean.FALSE;
+    case TRUE:
+      return Boolean.TRUE;
+    case LONG: {
+      long v = getLong(b, pos[0]) ^ Long.MIN_VALUE;
+      pos[0] += 8;
+      return v;
+    }
+    case DOUBLE: {
+      long bits = getLong(b, pos[0]);
+      pos[0] += 8;
+      return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+    }
+    case STRING:
+    case BYTES: {
+      int off = pos[0];
+      int end = terminator(b, off);
+      pos[0] = end + 2;
+      boolean escaped = false;
+      for(int i = off; i < end && !escaped; i++)
+        escaped = b[i] == END;
+      if(tag == STRING)
+        return escaped ? new String(unescape(b, off, end), StandardCharsets.UTF_8) : new String(b, off, end - off, StandardCharsets.UTF_8);
+      return escaped ? unescape(b, off, end) : Arrays.copyOfRange(b, off, end);
+    }
+    case LIST: {
+      List<Object> l = new ArrayList<Object>();
+      while(b[pos[0]] != END)
+        l.add(read(b, pos));
+      pos[0]++;
+      return l;
+    }
+    default:
+      throw new IllegalArgumentException("bad property tag " + tag);
+    }
+  }
+
+  /**
+   * Unsigned byte order of a[0, alen) and b[0, blen).
+   */
+  static int compare(byte[] a, int alen, byte[] b, int blen) {
+    int n = Math.min(alen, blen);
+    for(int i = 0; i < n; i++) {
+      int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if(c != 0)
+        return c;
+    }
+    return alen - blen;
+  }
+
+}
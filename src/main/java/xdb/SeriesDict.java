@@ -0,0 +1,126 @@
+package xdb;
+
+import jetbrains.exodus.env.*;
+import jetbrains.exodus.ByteIterable;
+import org.jetbrains.annotations.NotNull;
+import static jetbrains.exodus.bindings.StringBinding.entryToString;
+import static jetbrains.exodus.bindings.StringBinding.stringToEntry;
+import static jetbrains.exodus.bindings.IntegerBinding.entryToInt;
+import static jetbrains.exodus.bindings.IntegerBinding.intToEntry;
+import static jetbrains.exodus.env.StoreConfig.WITHOUT_DUPLICATES;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.concurrent.*;
+
+/**
+ * Persistent series name to id dictionary for one Gorilla shard. Ids are
+ * dense ints handed out in creation order; both directions are cached.
+ */
+public class SeriesDict {
+  private static Logger log = LogManager.getLogger(SeriesDict.class);
+
+  private final Environment env;
+  private final Store names;
+  private final Store ids;
+  private final ConcurrentHashMap<String, Integer> cache;
+  private final ConcurrentHashMap<Integer, String> rcache;
+  private int next;
+
+  public SeriesDict(Environment env, String name) {
+    this.env = env;
+    this.cache = new ConcurrentHashMap<String, Integer>();
+    this.rcache = new ConcurrentHashMap<Integer, String>();
+    this.names = env.computeInTransaction(new TransactionalComputable<Store>() {
+        @Override
+        public Store compute(@NotNull final Transaction txn) {
+          return env.openStore("series#"+name, WITHOUT_DUPLICATES, txn);
+        }
+      });
+    this.ids = env.computeInTransaction(new TransactionalComputable<Store>() {
+        @Override
+        public Store compute(@NotNull final Transaction txn) {
+          return env.openStore("seriesids#"+name, WITHOUT_DUPLICATES, txn);
+        }
+      });
+    this.next = env.computeInReadonlyTransaction(new TransactionalComputable<Integer>() {
+        @Override
+        public Integer compute(@NotNull final Transaction txn) {
+          try (Cursor cursor = ids.openCursor(txn)) {
+            return cursor.getLast() ? entryToInt(cursor.getKey()) + 1 : 0;
+          }
+        }
+      });
+    log.info("series dictionary {} next id {}", name, next);
+  }
+
+  /**
+   * Returns the id of the series, or -1 if it was never written.
+   */
+  public int get(String series) {
+    Integer id = cache.get(series);
+    if(id != null)
+      return id;
+    id = env.computeInReadonlyTransaction(new TransactionalComputable<Integer>() {
+        @Override
+        public Integer compute(@NotNull final Transaction txn) {
+          ByteIterable v = names.get(txn, stringToEntry(series));
+          return v == null ? -1 : entryToInt(v);
+        }
+      });
+    if(id >= 0)
+      remember(series, id);
+    return id;
+  }
+
+  public int getOrCreate(String series) {
+    int id = get(series);
+    if(id >= 0)
+      return id;
+    synchronized(this) {
+      Integer cached = cache.get(series);
+      if(cached != null)
+        return cached;
+      id = env.computeInTransaction(new TransactionalComputable<Integer>() {
+          @Override
+          public Integer compute(@NotNull final Transaction txn) {
+            ByteIterable v = names.get(txn, stringToEntry(series));
+            if(v != null)
+              return entryToInt(v);
+            names.put(txn, stringToEntry(series), intToEntry(next));
+            ids.put(txn, intToEntry(next), stringToEntry(series));
+            return next;
+          }
+        });
+      if(id == next)
+        next++;
+      remember(series, id);
+      return id;
+    }
+  }
+
+  public String name(int id) {
+    String series = rcache.get(id);
+    if(series != null)
+      return series;
+    series = env.computeInReadonlyTransaction(new TransactionalComputable<String>() {
+        @Override
+        public String compute(@NotNull final Transaction txn) {
+          ByteIterable v = ids.get(txn, intToEntry(id));
+          return v == null ? null : entryToString(v);
+        }
+      });
+    if(series != null)
+      remember(series, id);
+    return series;
+  }
+
+  public int size() {
+    return next;
+  }
+
+  private void remember(String series, int id) {
+    cache.put(series, id);
+    rcache.put(id, series);
+  }
+
+}
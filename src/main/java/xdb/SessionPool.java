@@ -0,0 +1,186 @@
+package xdb;
+
+import com.wiredtiger.db.*;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Thread affine cache of WiredTiger sessions and cursors. Every thread gets
+ * one session on first use and keeps released cursors per URI, reset and
+ * ready for the next acquire, so hot paths stop paying a JNI open and close
+ * for each pass. Sessions are not thread safe: a cursor must be released on
+ * the thread that acquired it.
+ */
+public class SessionPool implements AutoCloseable {
+  private static Logger log = LogManager.getLogger(SessionPool.class);
+
+  private final Connection conn;
+  private final ThreadLocal<Local> local;
+  private final Queue<Local> all;
+  // object -> version it was forgotten at; cursors acquired before that are stale
+  private final ConcurrentHashMap<String, Long> forgotten;
+  private final AtomicLong version;
+  private final LongAdder hits;
+  private final LongAdder misses;
+
+  class Local {
+    final Session session;
+    final HashMap<String, ArrayDeque<Cursor>> idle;
+    // cursors handed out, by the version they were acquired at
+    final IdentityHashMap<Cursor, Long> lent;
+    long seen;
+    // oldest version this thread may still hold a cursor from
+    volatile long floor;
+
+    Local() {
+      this.session = conn.open_session(null);
+      this.idle = new HashMap<String, ArrayDeque<Cursor>>();
+      this.lent = new IdentityHashMap<Cursor, Long>();
+      this.seen = version.get();
+      this.floor = seen;
+    }
+
+    void purge() {
+      long v = version.get();
+      if(seen == v)
+        return;
+      long before = seen;
+      seen = v;
+      Iterator<Map.Entry<String, ArrayDeque<Cursor>>> it = idle.entrySet().iterator();
+      while(it.hasNext()) {
+        Map.Entry<String, ArrayDeque<Cursor>> e = it.next();
+        Long gen = forgotten.get(object(e.getKey()));
+        if(gen != null && gen > before) {
+          for(Cursor c : e.getValue())
+            c.close();
+          it.remove();
+        }
+      }
+      updateFloor();
+      prune();
+    }
+
+    void updateFloor() {
+      long f = seen;
+      for(long at : lent.values())
+        f = Math.min(f, at);
+      floor = f;
+    }
+  }
+
+  public SessionPool(Connection conn) {
+    this.conn = conn;
+    this.all = new ConcurrentLinkedQueue<Local>();
+    this.forgotten = new ConcurrentHashMap<String, Long>();
+    this.version = new AtomicLong();
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.local = ThreadLocal.withInitial(() -> {
+        Local l = new Local();
+        all.add(l);
+        return l;
+      });
+  }
+
+  /**
+   * The calling thread's session.
+   */
+  public Session session() {
+    return local.get().session;
+  }
+
+  public Cursor acquire(String uri) {
+    Local l = local.get();
+    l.purge();
+    ArrayDeque<Cursor> q = l.idle.get(uri);
+    Cursor c = q == null ? null : q.poll();
+    if(c != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+      c = l.session.open_cursor(uri, null, null);
+    }
+    l.lent.put(c, l.seen);
+    return c;
+  }
+
+  public void release(String uri, Cursor c) {
+    Local l = local.get();
+    Long at = l.lent.remove(c);
+    Long gen = forgotten.get(object(uri));
+    if(gen != null && (at == null ? l.seen : at) < gen)
+      c.close();
+    else {
+      c.reset();
+      l.idle.computeIfAbsent(uri, k -> new ArrayDeque<Cursor>(2)).push(c);
+    }
+    if(at != null && at <= l.floor)
+      l.updateFloor();
+  }
+
+  /**
+   * Stops caching cursors on the object behind the URI and its indexes, e.g.
+   * before a table is dropped. Each thread closes its idle cursors on it at
+   * its next acquire, and cursors acquired before are closed on release.
+   * Cursors on an object created again under the same name are cached as
+   * before; the entry is dropped once every thread has purged it and holds
+   * no older cursor.
+   */
+  public void forget(String uri) {
+    // the entry is in place before any thread can see the new version
+    synchronized(forgotten) {
+      long gen = version.get() + 1;
+      forgotten.put(object(uri), gen);
+      version.set(gen);
+    }
+    prune();
+  }
+
+  private void prune() {
+    long min = version.get();
+    for(Local l : all)
+      min = Math.min(min, l.floor);
+    final long floor = min;
+    forgotten.values().removeIf(gen -> gen <= floor);
+  }
+
+  // table:t, index:t:i and index:t:i(cols) all name object t
+  static String object(String uri) {
+    int a = uri.indexOf(':') + 1;
+    int b = a;
+    while(b < uri.length() && uri.charAt(b) != ':' && uri.charAt(b) != '(')
+      b++;
+    return uri.substring(a, b);
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  public int sessions() {
+    return all.size();
+  }
+
+  public String toString() {
+    return "sessions=" + sessions() + ";hits=" + hits() + ";misses=" + misses();
+  }
+
+  /**
+   * Closes every session and with them their cursors. Only call once all
+   * threads using the pool are done.
+   */
+  public void close() {
+    log.info("session pool {}", this);
+    Local l;
+    while((l = all.poll()) != null)
+      l.session.close(null);
+  }
+
+}
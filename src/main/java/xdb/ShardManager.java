@@ -0,0 +1,126 @@
+package xdb;
+
+import com.wiredtiger.db.*;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.*;
+
+/**
+ * Owns N WiredTiger connections under one directory and routes rows to them
+ * by hash(host, metric). The cache budget is split evenly between the
+ * shards, so adding shards spreads ingest over more cores without adding
+ * cache memory. Range queries read every shard and merge rows by time.
+ */
+public class ShardManager implements AutoCloseable {
+  private static Logger log = LogManager.getLogger(ShardManager.class);
+
+  private final Connection[] shards;
+  private final String table;
+
+  public ShardManager(String dir, int n, long cacheBytes, String config, String table, String storage) {
+    this(dir, n, cacheBytes, config, table, storage, null);
+  }
+
+  /**
+   * Picks the table's compressor from the samples on the first shard and
+   * creates the table with that choice on every shard, as all shards hold
+   * the same kind of rows.
+   */
+  public ShardManager(String dir, int n, long cacheBytes, String config, String table, String storage,
+                      List<byte[]> samples, String... compressors) {
+    this.table = table;
+    this.shards = new Connection[n];
+    long cache = Math.max(cacheBytes / n, 1L << 20);
+    for(int i = 0; i < n; i++) {
+      String db = dir + "/shard" + i;
+      TimeSeriesDB.checkDir(db);
+      shards[i] = wiredtiger.open(db, "create,cache_size=" + (cache >> 20) + "MB," + config);
+      if(i == 0 && samples != null)
+        storage = new TableProvisioner(shards[0], compressors).configure(table, storage, samples);
+      Session session = shards[i].open_session(null);
+      session.create(table, storage);
+      session.close(null);
+    }
+    log.info("open {} shards under {} with {} MB cache each", n, dir, cache >> 20);
+  }
+
+  public int size() {
+    return shards.length;
+  }
+
+  public Connection get(int shard) {
+    return shards[shard];
+  }
+
+  public int route(String host, String metric) {
+    int h = host.hashCode() * 31 + metric.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return Math.floorMod(h, shards.length);
+  }
+
+  /**
+   * Reads [from, to] from every shard, each under its own snapshot, and
+   * hands the rows to the consumer in time order. Returns the row count.
+   */
+  public long scan(long from, long to, TimeSeriesDB.RowConsumer consumer) {
+    int n = shards.length;
+    Session[] sessions = new Session[n];
+    Cursor[] cursors = new Cursor[n];
+    long[] ts = new long[n];
+    String[] hosts = new String[n];
+    String[] metrics = new String[n];
+    byte[][] vals = new byte[n][];
+    PriorityQueue<Integer> heads = new PriorityQueue<Integer>(n, (a, b) -> Long.compare(ts[a], ts[b]));
+    long rows = 0;
+    try {
+      for(int i = 0; i < n; i++) {
+        sessions[i] = shards[i].open_session(null);
+        sessions[i].begin_transaction("isolation=snapshot");
+        cursors[i] = sessions[i].open_cursor(table, null, null);
+        cursors[i].putKeyLong(from);
+        SearchStatus status = cursors[i].search_near();
+        if(status == SearchStatus.NOTFOUND)
+          continue;
+        if(status == SearchStatus.SMALLER && cursors[i].next() != 0)
+          continue;
+        if(load(cursors[i], i, to, ts, hosts, metrics, vals))
+          heads.add(i);
+      }
+      while(!heads.isEmpty()) {
+        int i = heads.poll();
+        consumer.accept(ts[i], hosts[i], metrics[i], vals[i]);
+        rows++;
+        if(cursors[i].next() == 0 && load(cursors[i], i, to, ts, hosts, metrics, vals))
+          heads.add(i);
+      }
+    } finally {
+      for(int i = 0; i < n; i++) {
+        if(cursors[i] != null)
+          cursors[i].close();
+        if(sessions[i] != null) {
+          sessions[i].rollback_transaction(null);
+          sessions[i].close(null);
+        }
+      }
+    }
+    return rows;
+  }
+
+  private static boolean load(Cursor c, int i, long to, long[] ts, String[] hosts, String[] metrics, byte[][] vals) {
+    ts[i] = c.getKeyLong();
+    if(ts[i] > to)
+      return false;
+    hosts[i] = c.getKeyString();
+    metrics[i] = c.getKeyString();
+    vals[i] = c.getValueByteArray();
+    return true;
+  }
+
+  public void close() {
+    for(Connection conn : shards)
+      conn.close(null);
+  }
+
+}
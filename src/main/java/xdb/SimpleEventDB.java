@@ -48,9 +48,9 @@ public class SimpleEventDB {
     System.out.println("conn:"+conn);
     String evtTable = "table:rawevents";
 
-    Session session = conn.open_session(null);
-    session.create(evtTable, "type=lsm,key_format=u,value_format=u");
-    Cursor c = session.open_cursor(evtTable, null, null);
+    SessionPool sessions = new SessionPool(conn);
+    sessions.session().create(evtTable, "type=lsm,key_format=u,value_format=u");
+    Cursor c = sessions.acquire(evtTable);
     for (long i = 0; i < 10; i++) {
       byte[] key = ByteBuffer.allocate(8).putLong(i).array();
       byte[] val = ByteBuffer.allocate(8).putLong(1234567+i).array();
@@ -58,11 +58,9 @@ public class SimpleEventDB {
       c.putValueByteArray(val);
       c.update();
     }
-    c.close();
-    session.close(null);
+    sessions.release(evtTable, c);
 
-    session = conn.open_session(null);
-    c = session.open_cursor(evtTable, null, null);
+    c = sessions.acquire(evtTable);
     for (long i = 0; i < 10; i++) {
       byte[] key = ByteBuffer.allocate(8).putLong(i).array();
       c.putKeyByteArray(key);
@@ -75,19 +73,17 @@ public class SimpleEventDB {
       }
       c.reset();
     }
-    c.close();
-    session.close(null);
+    sessions.release(evtTable, c);
 
-    session = conn.open_session(null);
-    c = session.open_cursor(evtTable, null, null);
+    c = sessions.acquire(evtTable);
     while(c.next() == 0) {
       byte[] key = c.getKeyByteArray();
       byte[] val = c.getValueByteArray();
       log.info("key {} val {} ", key, val);
     }
-    c.close();
-    session.close(null);
+    sessions.release(evtTable, c);
 
+    sessions.close();
     conn.close(null);
 
   }
@@ -0,0 +1,122 @@
+package xdb;
+
+import com.wiredtiger.db.*;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Publishes one shared named WiredTiger snapshot, refreshed every interval.
+ * Readers pin the current snapshot, read through a transaction begun on it
+ * and release it; a snapshot is dropped as soon as it has been replaced and
+ * its last reader has let go, so an old snapshot never outlives its readers
+ * and holds back eviction.
+ */
+public class SnapshotManager implements Runnable, AutoCloseable {
+  private static Logger log = LogManager.getLogger(SnapshotManager.class);
+
+  private final Session admin;
+  private final String prefix;
+  private final long interval;
+  private final AtomicLong seq;
+  private volatile Snapshot current;
+  private volatile boolean stop;
+
+  public class Snapshot {
+    public final String name;
+    final AtomicInteger refs;
+
+    Snapshot(String name) {
+      this.name = name;
+      // the publisher holds one reference until the snapshot is replaced
+      this.refs = new AtomicInteger(1);
+    }
+  }
+
+  public SnapshotManager(Connection conn, String prefix, long interval) {
+    this.admin = conn.open_session(null);
+    this.prefix = prefix;
+    this.interval = interval;
+    this.seq = new AtomicLong();
+    this.stop = false;
+    refresh();
+  }
+
+  public Snapshot pin() {
+    while(true) {
+      Snapshot s = current;
+      int r = s.refs.get();
+      if(r > 0 && s.refs.compareAndSet(r, r + 1))
+        return s;
+    }
+  }
+
+  public void release(Snapshot s) {
+    if(s.refs.decrementAndGet() == 0)
+      drop(s);
+  }
+
+  /**
+   * Pins the current snapshot and begins a read transaction on it.
+   */
+  public Snapshot begin(Session session) {
+    Snapshot s = pin();
+    try {
+      session.begin_transaction("snapshot=" + s.name);
+    } catch(RuntimeException e) {
+      release(s);
+      throw e;
+    }
+    return s;
+  }
+
+  public void end(Session session, Snapshot s) {
+    try {
+      session.rollback_transaction(null);
+    } finally {
+      release(s);
+    }
+  }
+
+  public void refresh() {
+    Snapshot s;
+    synchronized(admin) {
+      s = new Snapshot(prefix + seq.incrementAndGet());
+      admin.snapshot("name=" + s.name);
+    }
+    Snapshot old = current;
+    current = s;
+    if(old != null)
+      release(old);
+  }
+
+  private void drop(Snapshot s) {
+    synchronized(admin) {
+      admin.snapshot("drop=(names=[" + s.name + "])");
+    }
+  }
+
+  public void run() {
+    while(!stop) {
+      try {Thread.currentThread().sleep(interval);} catch(InterruptedException ex) {}
+      try {
+        refresh();
+      } catch(WiredTigerException e) {
+        log.info("snapshot refresh {}", e);
+      }
+    }
+  }
+
+  public void stop() {
+    stop = true;
+  }
+
+  public void close() {
+    stop = true;
+    release(current);
+    synchronized(admin) {
+      admin.close(null);
+    }
+  }
+
+}
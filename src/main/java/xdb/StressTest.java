@@ -6,7 +6,6 @@ import jetbrains.exodus.ByteIterator;
 import jetbrains.exodus.ArrayByteIterable;
 import jetbrains.exodus.CompoundByteIterable;
 import org.jetbrains.annotations.NotNull;
-import jetbrains.exodus.management.*;
 import jetbrains.exodus.bindings.LongBinding;
 import static jetbrains.exodus.bindings.StringBinding.entryToString;
 import static jetbrains.exodus.bindings.StringBinding.stringToEntry;
@@ -22,11 +21,17 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.time.*;
 
 public class StressTest {
   private static Logger log = LogManager.getLogger(StressTest.class);
 
+  // open loop rates per thread, in operations per second
+  private static final double writeRate = 10;
+  private static final double readRate = 4;
+  private static final Metrics registry = new Metrics(1000);
+
   public static class Event {
     UUID key;
     double val;
@@ -107,70 +112,56 @@ public class StressTest {
     }
 
     public void run() {
-      double sum = 0; double max = 0; double min = 10;
-      double avg = 0;
-      for (int tx = 0; tx < 10000; tx++) {
-        long t1 = System.nanoTime();
-        env.executeInTransaction(new TransactionalExecutable() {
-            @Override
-            public void execute(@NotNull final Transaction txn) {
-              for (int i = 0; i < 10000; i++) {
-                Event evt = new Event(UUID.randomUUID(), i);
-                store.add(txn, evt.getKey(), evt.getValue());
-              }
-            }
+      Histogram latency = registry.histogram("write");
+      LoadGenerator load = new LoadGenerator(writeRate);
+      try {
+        load.run(10000, latency, tx -> {
+            env.executeInTransaction(new TransactionalExecutable() {
+                @Override
+                public void execute(@NotNull final Transaction txn) {
+                  for (int i = 0; i < 10000; i++) {
+                    Event evt = new Event(UUID.randomUUID(), i);
+                    store.add(txn, evt.getKey(), evt.getValue());
+                  }
+                }
+              });
           });
-        long t2 = System.nanoTime();
-        double d = (t2-t1)/1e9;
-        sum += d;
-        avg = sum/tx;
-        if(d>max) max = d;
-        if(d<min) min = d;
-        if(d-avg > 0.1) {log.info("write d = {} avg ={} min={} max={}", d, avg, min, max);}
+      } catch(Exception e) {
+        log.info("writer {}", e);
       }
-      log.info("avg ={}",avg);
     }
   }
 
   public static class ReadTask implements Runnable {
     Environment env;
     Store store;
-    Random rnd;
     public ReadTask(Environment env, Store store) {
       this.env = env;
       this.store = store;
-      rnd = new Random();
     }
 
     public void run() {
-      double sum = 0; double max = 0; double min = 10;
-      double avg = 0;
-      final long[] count = new long[1];
-      for (int tx=0; tx < 100000; tx++) {
-        try {Thread.currentThread().sleep(rnd.nextInt(500));} catch(Exception e) {}
-        long t1 = System.nanoTime();
-        count[0] = 0;
-        env.executeInReadonlyTransaction(new TransactionalExecutable() {
-            @Override
-            public void execute(@NotNull final Transaction txn) {
-              try (Cursor cursor = store.openCursor(txn)) {
-                while (cursor.getNext()) {
-                  ByteIterable key = cursor.getKey();
-                  ByteIterable value = cursor.getValue();
-                  Event evt = Event.getEvent(key, value);
-                  count[0]++;
+      Histogram latency = registry.histogram("read");
+      LoadGenerator load = new LoadGenerator(readRate);
+      LongAdder rows = registry.counter("read.rows");
+      try {
+        load.run(100000, latency, tx -> {
+            env.executeInReadonlyTransaction(new TransactionalExecutable() {
+                @Override
+                public void execute(@NotNull final Transaction txn) {
+                  try (Cursor cursor = store.openCursor(txn)) {
+                    while (cursor.getNext()) {
+                      ByteIterable key = cursor.getKey();
+                      ByteIterable value = cursor.getValue();
+                      Event evt = Event.getEvent(key, value);
+                      rows.increment();
+                    }
+                  }
                 }
-              }
-            }
+              });
           });
-        long t2 = System.nanoTime();
-        double d = (t2-t1)/1e9;
-        sum += d;
-        avg = sum/tx;
-        if(d>max) max = d;
-        if(d<min) min = d;
-        //if(d-avg > 0.1) {log.info("read d = {} avg ={} min={} max={}", d, avg, min, max);}
-        log.info("read count = {} d = {} avg ={} min={} max={}", count[0], d, avg, min, max);
+      } catch(Exception e) {
+        log.info("reader {}", e);
       }
     }
   }
@@ -185,6 +176,7 @@ public class StressTest {
           return env.openStore("stressdb", WITHOUT_DUPLICATES, txn);
         }
       });
+    registry.xodus("xodus", env);
     Thread[] workers = new Thread[4];
     for(int i=0; i< workers.length/2; i++) {
       workers[i] = new Thread(new WriteTask(env, store));
@@ -195,13 +187,21 @@ public class StressTest {
       workers[i].start();
     }
 
+    registry.jvm();
+    Thread poller = new Thread(registry);
+    poller.start();
     for(int i=0; i< workers.length; i++) {
-      workers[i].join();
-    }
-    for(String name :  env.getStatistics().getItemNames()) {
-      StatisticsItem item = env.getStatistics().getStatisticsItem(name);
-      log.info("{}={}",name, item.getTotal());
+      while(workers[i].isAlive()) {
+        workers[i].join(10000);
+        registry.report();
+      }
     }
+    registry.summary();
+    registry.stop();
+    poller.join();
+    registry.poll();
+    registry.snapshot().forEach((k, v) -> log.info("{}={}", k, v));
+    registry.close();
     env.close();
   }
 
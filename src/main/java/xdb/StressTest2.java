@@ -6,7 +6,6 @@ import jetbrains.exodus.ByteIterator;
 import jetbrains.exodus.ArrayByteIterable;
 import jetbrains.exodus.CompoundByteIterable;
 import org.jetbrains.annotations.NotNull;
-import jetbrains.exodus.management.*;
 import jetbrains.exodus.bindings.LongBinding;
 import static jetbrains.exodus.bindings.StringBinding.entryToString;
 import static jetbrains.exodus.bindings.StringBinding.stringToEntry;
@@ -22,11 +21,17 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.time.*;
 
 public class StressTest2 {
   private static Logger log = LogManager.getLogger(StressTest2.class);
 
+  // open loop rates per thread, in operations per second
+  private static final double writeRate = 10;
+  private static final double readRate = 4;
+  private static final Metrics registry = new Metrics(1000);
+
   public static class Event {
     UUID key;
     double val;
@@ -75,72 +80,60 @@ public class StressTest2 {
     }
 
     public void run() {
-      double sum = 0; double max = 0; double min = 10;
-      double avg = 0;
-      for (int tx = 0; tx < 10000; tx++) {
-        long t1 = System.nanoTime();
-        env.executeInTransaction(new TransactionalExecutable() {
-            @Override
-            public void execute(@NotNull final Transaction txn) {
-              for (int i = 0; i < 10000; i++) {
-                Event evt = new Event(UUID.randomUUID(), i);
-                store.add(txn, evt.getKey(), evt.getValue());
-              }
-            }
+      Histogram latency = registry.histogram("write");
+      LoadGenerator load = new LoadGenerator(writeRate);
+      try {
+        load.run(10000, latency, tx -> {
+            env.executeInTransaction(new TransactionalExecutable() {
+                @Override
+                public void execute(@NotNull final Transaction txn) {
+                  for (int i = 0; i < 10000; i++) {
+                    Event evt = new Event(UUID.randomUUID(), i);
+                    store.add(txn, evt.getKey(), evt.getValue());
+                  }
+                }
+              });
           });
-        long t2 = System.nanoTime();
-        double d = (t2-t1)/1e9;
-        sum += d;
-        avg = sum/tx;
-        if(d>max) max = d;
-        if(d<min) min = d;
-        if(d-avg > 0.1) {log.info("write d = {} avg ={} min={} max={}", d, avg, min, max);}
+      } catch(Exception e) {
+        log.info("writer {}", e);
       }
-      log.info("avg ={}",avg);
     }
   }
 
   public static class ReadTask implements Runnable {
     final Environment[] envs;
     final Store[] stores;
-    Random rnd;
     public ReadTask(Environment[] envs, Store[] stores) {
       this.envs = envs;
       this.stores = stores;
-      rnd = new Random();
     }
 
     public void run() {
-      double sum = 0; double max = 0; double min = 10;
-      double avg = 0;
-      final long[] count = new long[1];
-      for (int tx=0; tx < 100000; tx++) {
-        try {Thread.currentThread().sleep(rnd.nextInt(500));} catch(Exception e) {}
-        long t1 = System.nanoTime();
-        count[0] = 0; final int[] s = new int[1];
-        for (int c = 0; c < stores.length; c++) {
-          s[0] = c;
-          envs[c].executeInReadonlyTransaction(new TransactionalExecutable() {
-              @Override
-              public void execute(@NotNull final Transaction txn) {
-                try (Cursor cursor = stores[s[0]].openCursor(txn)) {
-                  while (cursor.getNext()) {
-                    ByteIterable key = cursor.getKey();
-                    ByteIterable value = cursor.getValue();
-                    Event evt = Event.getEvent(key, value);
-                    count[0]++;
+      Histogram latency = registry.histogram("read");
+      LoadGenerator load = new LoadGenerator(readRate);
+      LongAdder rows = registry.counter("read.rows");
+      try {
+        load.run(100000, latency, tx -> {
+            final int[] s = new int[1];
+            for (int c = 0; c < stores.length; c++) {
+              s[0] = c;
+              envs[c].executeInReadonlyTransaction(new TransactionalExecutable() {
+                  @Override
+                  public void execute(@NotNull final Transaction txn) {
+                    try (Cursor cursor = stores[s[0]].openCursor(txn)) {
+                      while (cursor.getNext()) {
+                        ByteIterable key = cursor.getKey();
+                        ByteIterable value = cursor.getValue();
+                        Event evt = Event.getEvent(key, value);
+                        rows.increment();
+                      }
+                    }
                   }
-                }
-              }
-            });
-        }
-        long t2 = System.nanoTime();
-        double d = (t2-t1)/1e9;
-        sum += d;
-        avg = sum/tx;
-        if(d>max) max = d;
-        if(d<min) min = d;
-        log.info("read count = {} d = {} avg ={} min={} max={}", count[0], d, avg, min, max);
+                });
+            }
+          });
+      } catch(Exception e) {
+        log.info("reader {}", e);
       }
     }
   }
@@ -160,6 +153,9 @@ public class StressTest2 {
         }
       });
     }
+    for (int i = 0; i < shards; i++) {
+      registry.xodus("xodus.shard" + i, envs[i]);
+    }
     int cw = shards; int rw = 5;
     Thread[] workers = new Thread[cw+rw];
     for(int i = 0; i< shards; i++) {
@@ -174,14 +170,22 @@ public class StressTest2 {
       workers[i].start();
     }
 
+    registry.jvm();
+    Thread poller = new Thread(registry);
+    poller.start();
     for(int i=0; i< workers.length; i++) {
-      workers[i].join();
+      while(workers[i].isAlive()) {
+        workers[i].join(10000);
+        registry.report();
+      }
     }
+    registry.summary();
+    registry.stop();
+    poller.join();
+    registry.poll();
+    registry.snapshot().forEach((k, v) -> log.info("{}={}", k, v));
+    registry.close();
     for (Environment env: envs) {
-      for(String name :  env.getStatistics().getItemNames()) {
-        StatisticsItem item = env.getStatistics().getStatisticsItem(name);
-        log.info("{}={}",name, item.getTotal());
-      }
       env.close();
     }
   }
@@ -6,7 +6,6 @@ import jetbrains.exodus.ByteIterator;
 import jetbrains.exodus.ArrayByteIterable;
 import jetbrains.exodus.CompoundByteIterable;
 import org.jetbrains.annotations.NotNull;
-import jetbrains.exodus.management.*;
 import jetbrains.exodus.bindings.LongBinding;
 import static jetbrains.exodus.bindings.StringBinding.entryToString;
 import static jetbrains.exodus.bindings.StringBinding.stringToEntry;
@@ -22,41 +21,44 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.time.*;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
 
 public class StressTest3 {
   private static Logger log = LogManager.getLogger(StressTest3.class);
 
+  // open loop rates per thread, in operations per second
+  private static final double writeRate = 0.2;
+  private static final double readRate = 2;
+  private static final Metrics registry = new Metrics(1000);
+
   
   public static class WriteTask implements Runnable {
     Environment env;
     Store store;
-    Random rnd;
+    Workload workload;
     
-    public WriteTask(Environment env, Store store) {
+    public WriteTask(Environment env, Store store, int id) {
       this.env = env;
       this.store = store;
-      rnd = new Random();
+      this.workload = new Workload(42, 1000000000).fork(id);
     }
 
     public ByteIterable[] generateKeys(int count) {
-      DecimalFormat FORMAT = (DecimalFormat) NumberFormat.getIntegerInstance();
-      FORMAT.applyPattern("000000000000");
       ByteIterable[] keys = new ByteIterable[count];
       for (int i = 0; i < count; i++) {
-        keys[i] = stringToEntry(FORMAT.format(rnd.nextInt(1000000000)));
+        keys[i] = stringToEntry(Workload.pad(workload.next(), 12));
       }
       return keys;
     }
     
     public void run() {
-      double sum = 0; double max = 0; double min = 10;
-      double avg = 0; int count = 1000000;
+      Histogram latency = registry.histogram("write");
+      LoadGenerator load = new LoadGenerator(writeRate);
+      int count = 1000000;
       for (int tx = 0; tx < 10; tx++) {
         ByteIterable[] data = generateKeys(count);
-        long t1 = System.nanoTime();
+        long due = load.next();
         env.executeInTransaction(new TransactionalExecutable() {
             @Override
             public void execute(@NotNull final Transaction txn) {
@@ -65,13 +67,7 @@ public class StressTest3 {
               }
             }
           });
-        long t2 = System.nanoTime();
-        double d = (t2-t1)/1e9;
-        sum += d;
-        avg = sum/tx;
-        if(d>max) max = d;
-        if(d<min) min = d;
-        log.info("write tx={} d = {} avg ={} min={} max={}", tx, d, avg, min, max);
+        latency.record(System.nanoTime() - due);
       }
     }
   }
@@ -79,43 +75,36 @@ public class StressTest3 {
   public static class ReadTask implements Runnable {
     final Environment[] envs;
     final Store[] stores;
-    Random rnd;
     public ReadTask(Environment[] envs, Store[] stores) {
       this.envs = envs;
       this.stores = stores;
-      rnd = new Random();
     }
 
     public void run() {
-      double sum = 0; double max = 0; double min = 10;
-      double avg = 0;
-      final long[] count = new long[1];
-      for (int tx=0; tx < 100000; tx++) {
-        try {Thread.currentThread().sleep(rnd.nextInt(1000));} catch(Exception e) {}
-        long t1 = System.nanoTime();
-        count[0] = 0; final int[] s = new int[1];
-        for (int c = 0; c < stores.length; c++) {
-          s[0] = c;
-          envs[c].executeInReadonlyTransaction(new TransactionalExecutable() {
-              @Override
-              public void execute(@NotNull final Transaction txn) {
-                try (Cursor cursor = stores[s[0]].openCursor(txn)) {
-                  while (cursor.getNext()) {
-                    ByteIterable key = cursor.getKey();
-                    ByteIterable value = cursor.getValue();
-                    count[0]++;
+      Histogram latency = registry.histogram("read");
+      LoadGenerator load = new LoadGenerator(readRate);
+      LongAdder rows = registry.counter("read.rows");
+      try {
+        load.run(100000, latency, tx -> {
+            final int[] s = new int[1];
+            for (int c = 0; c < stores.length; c++) {
+              s[0] = c;
+              envs[c].executeInReadonlyTransaction(new TransactionalExecutable() {
+                  @Override
+                  public void execute(@NotNull final Transaction txn) {
+                    try (Cursor cursor = stores[s[0]].openCursor(txn)) {
+                      while (cursor.getNext()) {
+                        ByteIterable key = cursor.getKey();
+                        ByteIterable value = cursor.getValue();
+                        rows.increment();
+                      }
+                    }
                   }
-                }
-              }
-            });
-        }
-        long t2 = System.nanoTime();
-        double d = (t2-t1)/1e9;
-        sum += d;
-        avg = sum/tx;
-        if(d>max) max = d;
-        if(d<min) min = d;
-        log.info("read count = {} d = {} avg ={} min={} max={}", count[0], d, avg, min, max);
+                });
+            }
+          });
+      } catch(Exception e) {
+        log.info("reader {}", e);
       }
     }
   }
@@ -135,10 +124,13 @@ public class StressTest3 {
           }
         });
     }
+    for (int i = 0; i < shards; i++) {
+      registry.xodus("xodus.shard" + i, envs[i]);
+    }
     int cw = shards; int rw = 5;
     Thread[] workers = new Thread[cw+rw];
     for(int i = 0; i< shards; i++) {
-      workers[i] = new Thread(new WriteTask(envs[i], stores[i]));
+      workers[i] = new Thread(new WriteTask(envs[i], stores[i], i));
       workers[i].start();
       //workers[i+1] = new Thread(new WriteTask(envs[i], stores[i]));
       //workers[i+1].start();
@@ -149,14 +141,22 @@ public class StressTest3 {
       workers[i].start();
     }
 
+    registry.jvm();
+    Thread poller = new Thread(registry);
+    poller.start();
     for(int i=0; i< workers.length; i++) {
-      workers[i].join();
+      while(workers[i].isAlive()) {
+        workers[i].join(10000);
+        registry.report();
+      }
     }
+    registry.summary();
+    registry.stop();
+    poller.join();
+    registry.poll();
+    registry.snapshot().forEach((k, v) -> log.info("{}={}", k, v));
+    registry.close();
     for (Environment env: envs) {
-      for(String name :  env.getStatistics().getItemNames()) {
-        StatisticsItem item = env.getStatistics().getStatisticsItem(name);
-        log.info("{}={}",name, item.getTotal());
-      }
       env.close();
     }
   }
@@ -0,0 +1,207 @@
+package xdb;
+
+import com.wiredtiger.db.*;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.*;
+
+/**
+ * Picks a block compressor per table from sample values. Every candidate
+ * writes the samples into a scratch table which is then checkpointed, so
+ * the measured size and write throughput come from the real compressor.
+ * The winner has the best ratio among candidates that keep at least half
+ * of the uncompressed throughput, and none is kept unless it saves enough.
+ * The choice is recorded in the table's app_metadata, so a reopened table
+ * is not probed again.
+ *
+ * Compressors must be loaded as extensions by the connection; candidates
+ * that are not loaded are skipped.
+ */
+public class TableProvisioner {
+  private static Logger log = LogManager.getLogger(TableProvisioner.class);
+
+  public static final String NONE = "none";
+
+  private final Connection conn;
+  private final String[] compressors;
+  private final double minRatio;
+
+  public static class Choice {
+    public final String compressor;
+    public final double ratio;
+    public final double mbps;
+
+    Choice(String compressor, double ratio, double mbps) {
+      this.compressor = compressor;
+      this.ratio = ratio;
+      this.mbps = mbps;
+    }
+
+    /**
+     * The create config for the table: base plus the compressor and the
+     * measurements it was chosen on.
+     */
+    public String config(String base) {
+      StringBuilder sb = new StringBuilder(base);
+      if(!compressor.equals(NONE))
+        sb.append(",block_compressor=").append(compressor);
+      sb.append(",app_metadata=\"").append(metadata()).append("\"");
+      return sb.toString();
+    }
+
+    String metadata() {
+      return String.format(Locale.ROOT, "compressor:%s;ratio:%.2f;mbps:%.1f", compressor, ratio, mbps);
+    }
+
+    static Choice parse(String meta) {
+      Map<String, String> m = new HashMap<String, String>();
+      for(String kv : meta.split(";")) {
+        int i = kv.indexOf(':');
+        if(i > 0)
+          m.put(kv.substring(0, i), kv.substring(i + 1));
+      }
+      if(!m.containsKey("compressor"))
+        return null;
+      try {
+        return new Choice(m.get("compressor"),
+                          Double.parseDouble(m.getOrDefault("ratio", "1")),
+                          Double.parseDouble(m.getOrDefault("mbps", "0")));
+      } catch(NumberFormatException e) {
+        return null;
+      }
+    }
+
+    public String toString() {
+      return metadata();
+    }
+  }
+
+  public TableProvisioner(Connection conn, String... compressors) {
+    this(conn, 1.25, compressors);
+  }
+
+  public TableProvisioner(Connection conn, double minRatio, String... compressors) {
+    this.conn = conn;
+    this.minRatio = minRatio;
+    this.compressors = compressors;
+  }
+
+  /**
+   * The choice recorded for an existing table, none for a table created
+   * without one, or null when the table does not exist.
+   */
+  public Choice recorded(String uri) {
+    Session session = conn.open_session(null);
+    Cursor c = session.open_cursor("metadata:", null, null);
+    try {
+      c.putKeyString(uri);
+      if(c.search() != 0)
+        return null;
+      String config = c.getValueString();
+      String key = "app_metadata=\"";
+      int i = config.indexOf(key);
+      Choice choice = null;
+      if(i >= 0) {
+        int j = config.indexOf('"', i + key.length());
+        if(j > 0)
+          choice = Choice.parse(config.substring(i + key.length(), j));
+      }
+      return choice != null ? choice : new Choice(NONE, 1, 0);
+    } finally {
+      c.close();
+      session.close(null);
+    }
+  }
+
+  /**
+   * Measures every candidate on the samples and returns the winner. Probes
+   * are always B-trees (type=file); for an LSM table the choice comes from
+   * that B-tree probe, as its chunks are B-trees compressed the same way.
+   */
+  public Choice measure(String uri, List<byte[]> samples) {
+    long raw = 0;
+    for(byte[] v : samples)
+      raw += v.length;
+    Session session = conn.open_session(null);
+    try {
+      Choice none = probe(session, uri, NONE, samples, raw);
+      if(none == null)
+        return new Choice(NONE, 1, 0);
+      Choice best = none;
+      for(String compressor : compressors) {
+        Choice c = probe(session, uri, compressor, samples, raw);
+        if(c != null && c.mbps >= none.mbps / 2 && c.ratio > best.ratio)
+          best = c;
+      }
+      if(best.ratio < none.ratio * minRatio)
+        best = none;
+      log.info("{} uses {} over {} samples", uri, best, samples.size());
+      return best;
+    } finally {
+      session.close(null);
+    }
+  }
+
+  /**
+   * The create config for the table, probing the samples only when the
+   * table does not exist yet.
+   */
+  public String configure(String uri, String base, List<byte[]> samples) {
+    Choice choice = recorded(uri);
+    if(choice == null)
+      choice = measure(uri, samples);
+    else
+      log.info("{} keeps {}", uri, choice);
+    return choice.config(base);
+  }
+
+  // ratio is raw sample bytes over the checkpointed file size
+  private Choice probe(Session session, String uri, String compressor, List<byte[]> samples, long raw) {
+    String probe = "table:" + uri.substring(uri.indexOf(':') + 1) + "_probe_" + compressor;
+    String config = "type=file,key_format=q,value_format=u";
+    if(!compressor.equals(NONE))
+      config += ",block_compressor=" + compressor;
+    try {
+      session.drop(probe, "force=true");
+      session.create(probe, config);
+    } catch(WiredTigerException e) {
+      log.info("skip compressor {}: {}", compressor, e.getMessage());
+      return null;
+    }
+    try {
+      long t1 = System.nanoTime();
+      Cursor c = session.open_cursor(probe, null, null);
+      session.begin_transaction(null);
+      boolean active = true;
+      try {
+        long k = 0;
+        for(byte[] v : samples) {
+          c.putKeyLong(k++);
+          c.putValueByteArray(v);
+          c.insert();
+        }
+        // a failed commit ends the transaction too
+        active = false;
+        session.commit_transaction(null);
+      } finally {
+        if(active)
+          session.rollback_transaction(null);
+        c.close();
+      }
+      session.checkpoint("target=(\"" + probe + "\")");
+      double secs = Math.max((System.nanoTime() - t1) / 1e9, 1e-6);
+      long size = Math.max(RetentionManager.size(session, probe), 1);
+      return new Choice(compressor, (double)raw / size, raw / secs / (1 << 20));
+    } catch(WiredTigerException e) {
+      log.info("probe {} failed: {}", probe, e.getMessage());
+      return null;
+    } finally {
+      try {
+        session.drop(probe, "force=true");
+      } catch(WiredTigerException e) {
+        log.info("cannot drop {}: {}", probe, e.getMessage());
+      }
+    }
+  }
+
+}
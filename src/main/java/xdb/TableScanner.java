@@ -0,0 +1,260 @@
+package xdb;
+
+import com.wiredtiger.db.*;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * Parallel full scans of a raw (key_format=u,value_format=u) table. Split
+ * points are sampled from the key space with a next_random cursor, and each
+ * key range is read on its own session and cursor. Tables that cannot be
+ * sampled, e.g. LSM trees, are read as a single range.
+ *
+ * Ranges begin separate transactions, so pass a named snapshot as the
+ * transaction config when the result must be one point in time.
+ */
+public class TableScanner implements AutoCloseable {
+  private static Logger log = LogManager.getLogger(TableScanner.class);
+
+  private final Connection conn;
+  private final int threads;
+  private final int ranges;
+  private final ExecutorService pool;
+
+  public static class Row {
+    public final byte[] key;
+    public final byte[] val;
+
+    Row(byte[] key, byte[] val) {
+      this.key = key;
+      this.val = val;
+    }
+  }
+
+  public TableScanner(Connection conn, int threads) {
+    this.conn = conn;
+    this.threads = threads;
+    this.ranges = threads * 4;
+    this.pool = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * Range bounds of the table: null, s1, ..., sn, null, where null is the
+   * open end of the key space.
+   */
+  public List<byte[]> splits(String uri, int n) {
+    List<byte[]> samples = new ArrayList<byte[]>();
+    Session session = conn.open_session(null);
+    try {
+      Cursor c = session.open_cursor(uri, null, "next_random=true");
+      try {
+        for(int i = 0; i < n * 16 && c.next() == 0; i++)
+          samples.add(c.getKeyByteArray());
+      } finally {
+        c.close();
+      }
+    } catch(WiredTigerException e) {
+      log.info("cannot sample {}, scanning it as one range: {}", uri, e);
+      samples.clear();
+    } finally {
+      session.close(null);
+    }
+    Collections.sort(samples, BucketCodec::compare);
+    List<byte[]> bounds = new ArrayList<byte[]>(n + 1);
+    bounds.add(null);
+    for(int i = 1; i < n && !samples.isEmpty(); i++) {
+      byte[] s = samples.get(samples.size() * i / n);
+      if(bounds.get(bounds.size() - 1) == null || BucketCodec.compare(bounds.get(bounds.size() - 1), s) < 0)
+        bounds.add(s);
+    }
+    bounds.add(null);
+    return bounds;
+  }
+
+  public Spliterator<Row> spliterator(String uri, String txnConfig) {
+    List<byte[]> bounds = splits(uri, ranges);
+    return new RangeSpliterator(uri, txnConfig, bounds, 0, bounds.size() - 1, new ConcurrentLinkedQueue<RangeSpliterator>());
+  }
+
+  /**
+   * A parallel stream of the rows of the table. Close the stream when it is
+   * not consumed to the end, so ranges still open release their sessions.
+   */
+  public Stream<Row> stream(String uri, String txnConfig) {
+    List<byte[]> bounds = splits(uri, ranges);
+    Queue<RangeSpliterator> open = new ConcurrentLinkedQueue<RangeSpliterator>();
+    return StreamSupport.stream(new RangeSpliterator(uri, txnConfig, bounds, 0, bounds.size() - 1, open), true)
+      .onClose(() -> {
+          RangeSpliterator s;
+          while((s = open.poll()) != null)
+            s.finish();
+        });
+  }
+
+  /**
+   * Folds every row of the table on the worker pool, one task per range,
+   * and combines the per range accumulators.
+   */
+  public <A> A fold(String uri, String txnConfig, Supplier<A> supplier,
+                    BucketScanner.RowFolder<A> folder, BinaryOperator<A> combiner) {
+    List<byte[]> bounds = splits(uri, ranges);
+    Queue<RangeSpliterator> open = new ConcurrentLinkedQueue<RangeSpliterator>();
+    List<Future<A>> parts = new ArrayList<Future<A>>();
+    for(int i = 0; i < bounds.size() - 1; i++) {
+      RangeSpliterator range = new RangeSpliterator(uri, txnConfig, bounds, i, i + 1, open);
+      // the task closes its range's session itself, also when the folder throws
+      parts.add(pool.submit(() -> {
+            try {
+              A acc = supplier.get();
+              range.forEachRemaining(row -> folder.accept(acc, row.key, row.val));
+              return acc;
+            } finally {
+              range.finish();
+            }
+          }));
+    }
+    A ret = null;
+    try {
+      for(Future<A> f : parts) {
+        A acc = f.get();
+        ret = ret == null ? acc : combiner.apply(ret, acc);
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch(ExecutionException e) {
+      // rethrown as is, so callers can catch WiredTigerRollbackException
+      if(e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+      throw new RuntimeException(e.getCause());
+    } finally {
+      for(Future<A> f : parts)
+        f.cancel(false);
+    }
+    return ret == null ? supplier.get() : ret;
+  }
+
+  /**
+   * Ranges [lo, hi) of the bounds. Splits hand over half of the ranges not
+   * yet started; a range is read on a session opened by the thread that
+   * traverses it and closed once the split is exhausted.
+   */
+  class RangeSpliterator implements Spliterator<Row> {
+    final String uri;
+    final String txnConfig;
+    final List<byte[]> bounds;
+    final Queue<RangeSpliterator> open;
+    int lo;
+    int hi;
+    Session session;
+    Cursor cursor;
+    boolean positioned;
+    byte[] key;
+
+    RangeSpliterator(String uri, String txnConfig, List<byte[]> bounds, int lo, int hi, Queue<RangeSpliterator> open) {
+      this.uri = uri;
+      this.txnConfig = txnConfig;
+      this.bounds = bounds;
+      this.lo = lo;
+      this.hi = hi;
+      this.open = open;
+    }
+
+    public boolean tryAdvance(Consumer<? super Row> action) {
+      while(lo < hi) {
+        if(session == null) {
+          session = conn.open_session(null);
+          open.add(this);
+          try {
+            session.begin_transaction(txnConfig);
+            cursor = session.open_cursor(uri, null, null);
+          } catch(RuntimeException e) {
+            finish();
+            throw e;
+          }
+        }
+        if(next()) {
+          action.accept(new Row(key, cursor.getValueByteArray()));
+          return true;
+        }
+        lo++;
+        positioned = false;
+      }
+      finish();
+      return false;
+    }
+
+    // moves to the next row of range lo, false once the range is done
+    private boolean next() {
+      int ret;
+      if(positioned) {
+        ret = cursor.next();
+      } else {
+        positioned = true;
+        byte[] start = bounds.get(lo);
+        if(start == null) {
+          cursor.reset();
+          ret = cursor.next();
+        } else {
+          cursor.putKeyByteArray(start);
+          SearchStatus status = cursor.search_near();
+          if(status == SearchStatus.NOTFOUND)
+            return false;
+          ret = status == SearchStatus.SMALLER ? cursor.next() : 0;
+        }
+      }
+      if(ret != 0)
+        return false;
+      key = cursor.getKeyByteArray();
+      byte[] end = bounds.get(lo + 1);
+      return end == null || BucketCodec.compare(key, end) < 0;
+    }
+
+    void finish() {
+      if(session == null)
+        return;
+      open.remove(this);
+      try {
+        session.rollback_transaction(null);
+      } catch(WiredTigerException e) {
+        log.info("scan {} {}", uri, e);
+      }
+      session.close(null);
+      session = null;
+      cursor = null;
+      key = null;
+    }
+
+    public Spliterator<Row> trySplit() {
+      // only ranges not yet started move to the new split
+      int mid = session == null ? (lo + hi) >>> 1 : (lo + 1 + hi) >>> 1;
+      if(mid <= lo || mid >= hi)
+        return null;
+      RangeSpliterator s = new RangeSpliterator(uri, txnConfig, bounds, mid, hi, open);
+      hi = mid;
+      return s;
+    }
+
+    public long estimateSize() {
+      return Long.MAX_VALUE;
+    }
+
+    public int characteristics() {
+      return ORDERED | NONNULL | DISTINCT;
+    }
+  }
+
+  public void close() {
+    pool.shutdown();
+    try {
+      pool.awaitTermination(10, TimeUnit.SECONDS);
+    } catch(InterruptedException e) {
+      log.info(e);
+    }
+  }
+
+}
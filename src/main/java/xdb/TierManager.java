@@ -0,0 +1,211 @@
+package xdb;
+
+import com.wiredtiger.db.*;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Hot and cold tiers of one time series table. Writes go to the hot LSM
+ * table; the migrator moves rows older than the age limit into the cold
+ * B-tree, a chunk per transaction, so a snapshot reader sees every row in
+ * exactly one tier. Reads merge both tiers in key order.
+ *
+ * Keys follow a BucketCodec, so rows of each bucket are in time order and
+ * aged rows form a contiguous range at the start of every bucket.
+ */
+public class TierManager implements Runnable {
+  private static Logger log = LogManager.getLogger(TierManager.class);
+
+  private static final int RETRIES = 8;
+
+  private final Connection conn;
+  private final String hot;
+  private final String cold;
+  private final BucketCodec codec;
+  private final long age;
+  private final long interval;
+  private final int chunk;
+  private volatile boolean stop;
+  private volatile long moved;
+
+  public TierManager(Connection conn, String hot, String hotStorage, String cold, String coldStorage,
+                     BucketCodec codec, long age, long interval) {
+    this.conn = conn;
+    this.hot = hot;
+    this.cold = cold;
+    this.codec = codec;
+    this.age = age;
+    this.interval = interval;
+    this.chunk = 10000;
+    this.stop = false;
+    Session session = conn.open_session(null);
+    session.create(hot, hotStorage);
+    session.create(cold, coldStorage);
+    session.close(null);
+  }
+
+  public String hot() {
+    return hot;
+  }
+
+  public String cold() {
+    return cold;
+  }
+
+  public long moved() {
+    return moved;
+  }
+
+  public BucketCodec codec() {
+    return codec;
+  }
+
+  /**
+   * Moves every row of the bucket older than cutoff from hot to cold and
+   * returns the number of rows moved. A chunk that keeps rolling back is
+   * retried RETRIES times with growing pauses, then left for the next pass.
+   */
+  public long migrate(Session session, int bucket, long cutoff) {
+    byte[] low = codec.key(bucket, 0);
+    List<byte[]> keys = new ArrayList<byte[]>(chunk);
+    List<byte[]> vals = new ArrayList<byte[]>(chunk);
+    long total = 0;
+    Cursor hc = session.open_cursor(hot, null, null);
+    Cursor cc = session.open_cursor(cold, null, null);
+    int rollbacks = 0;
+    try {
+      while(true) {
+        keys.clear();
+        vals.clear();
+        boolean done = false;
+        session.begin_transaction("isolation=snapshot");
+        boolean active = true;
+        try {
+          hc.putKeyByteArray(low);
+          SearchStatus status = hc.search_near();
+          boolean valid = status != SearchStatus.NOTFOUND
+            && (status != SearchStatus.SMALLER || hc.next() == 0);
+          while(valid && keys.size() < chunk) {
+            byte[] key = hc.getKeyByteArray();
+            if(!codec.inBucket(key, bucket) || codec.ts(key) >= cutoff)
+              break;
+            keys.add(key);
+            vals.add(hc.getValueByteArray());
+            valid = hc.next() == 0;
+          }
+          for(int i = 0; i < keys.size(); i++) {
+            cc.putKeyByteArray(keys.get(i));
+            cc.putValueByteArray(vals.get(i));
+            cc.insert();
+            hc.putKeyByteArray(keys.get(i));
+            hc.remove();
+          }
+          // a failed commit ends the transaction too
+          active = false;
+          session.commit_transaction(null);
+          done = true;
+        } catch(WiredTigerRollbackException e) {
+          keys.clear();
+        } finally {
+          if(active)
+            session.rollback_transaction(null);
+        }
+        if(!done) {
+          if(++rollbacks > RETRIES) {
+            log.info("migrate bucket {} gives up after {} roll backs", bucket, RETRIES);
+            break;
+          }
+          try {Thread.currentThread().sleep(Math.min(1L << rollbacks, 100));} catch(InterruptedException ex) {}
+          continue;
+        }
+        rollbacks = 0;
+        total += keys.size();
+        if(keys.size() < chunk)
+          break;
+      }
+    } finally {
+      hc.close();
+      cc.close();
+    }
+    return total;
+  }
+
+  /**
+   * Visits the rows of a bucket with a timestamp in [from, to] from both
+   * tiers, merged in key order. Call inside a snapshot transaction so a
+   * concurrent migration is seen either entirely or not at all.
+   */
+  public long scan(Session session, int bucket, long from, long to, BiConsumer<byte[], byte[]> consumer) {
+    Cursor hc = session.open_cursor(hot, null, null);
+    Cursor cc = session.open_cursor(cold, null, null);
+    long rows = 0;
+    try {
+      byte[] h = seek(hc, bucket, from, to);
+      byte[] c = seek(cc, bucket, from, to);
+      while(h != null || c != null) {
+        if(c == null || (h != null && BucketCodec.compare(h, c) <= 0)) {
+          if(c != null && BucketCodec.compare(h, c) == 0)
+            c = advance(cc, bucket, to);
+          consumer.accept(h, hc.getValueByteArray());
+          h = advance(hc, bucket, to);
+        } else {
+          consumer.accept(c, cc.getValueByteArray());
+          c = advance(cc, bucket, to);
+        }
+        rows++;
+      }
+    } finally {
+      hc.close();
+      cc.close();
+    }
+    return rows;
+  }
+
+  private byte[] seek(Cursor c, int bucket, long from, long to) {
+    c.putKeyByteArray(codec.key(bucket, from));
+    SearchStatus status = c.search_near();
+    if(status == SearchStatus.NOTFOUND)
+      return null;
+    if(status == SearchStatus.SMALLER && c.next() != 0)
+      return null;
+    return current(c, bucket, to);
+  }
+
+  private byte[] advance(Cursor c, int bucket, long to) {
+    return c.next() == 0 ? current(c, bucket, to) : null;
+  }
+
+  private byte[] current(Cursor c, int bucket, long to) {
+    byte[] key = c.getKeyByteArray();
+    return codec.inBucket(key, bucket) && codec.ts(key) <= to ? key : null;
+  }
+
+  public void stop() {
+    stop = true;
+  }
+
+  public void run() {
+    log.info("tier migration {} -> {} starts", hot, cold);
+    Session session = conn.open_session(null);
+    while(!stop) {
+      try {Thread.currentThread().sleep(interval);} catch(InterruptedException ex) {}
+      long cutoff = System.currentTimeMillis() - age;
+      long t1 = System.nanoTime();
+      long n = 0;
+      try {
+        for(int b = 0; b < codec.buckets && !stop; b++)
+          n += migrate(session, b, cutoff);
+      } catch(WiredTigerException e) {
+        log.info("tier migration {}", e);
+      }
+      moved += n;
+      if(n > 0)
+        log.info("moved {} rows to {} in {} ms, {} in total", n, cold, (System.nanoTime()-t1)/1e6, moved);
+    }
+    session.close(null);
+    log.info("tier migration {} -> {} stops", hot, cold);
+  }
+
+}
@@ -9,7 +9,7 @@ import java.util.*;
 import java.util.stream.*;
 import java.util.concurrent.*;
 import java.time.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TimeSeriesDB {
   private static Logger log = LogManager.getLogger(TimeSeriesDB.class);
@@ -111,14 +111,6 @@ public class TimeSeriesDB {
       return new Event(hosts[rnd.nextInt(hosts.length)], metrics[rnd.nextInt(metrics.length)], Instant.now().toEpochMilli()+salt, new byte[64]);
     }
 
-    public static Event getStartEvent() {
-      return new Event("zzzz", "zzzz", 0, new byte[64]);
-    }
-
-    public static Event getEndEvent(long ts) {
-      return new Event("zzzz", "zzzz", ts, new byte[64]);
-    }
-
   }
 
   public static boolean checkDir(String dir) {
@@ -142,233 +134,249 @@ public class TimeSeriesDB {
     public void run() {
       int id = (int)Thread.currentThread().getId();
       log.info("ingestor starts {}", id);
-      Session session = conn.open_session(null);
-      session.create(table, storage);
       int batch = 100;
       int total = 0;
       EventFactory producer = new EventFactory(10000000, 100000);
-      Cursor c = session.open_cursor(table, null, null);
       while(!stop) {
-        try {Thread.currentThread().sleep(id);} catch(Exception ex) {}
-        boolean done = false;
+        CompletableFuture<?>[] acks = new CompletableFuture<?>[batch];
+        for(int i = 0; i < batch; i++) {
+          Event evt = producer.getNextEvent(id);
+          acks[i] = group.insert(retention.table(evt.ts), c -> {
+              c.putKeyLong(evt.ts);
+              c.putKeyString(evt.host);
+              c.putKeyString(evt.metric);
+              c.putValueByteArray(evt.val);
+            });
+        }
         try {
-          //session.begin_transaction(tnx);
-          for(int i = 0; i < batch; i++) {
-            Event evt = producer.getNextEvent(id);
-            c.putKeyLong(evt.ts);
-            c.putKeyString(evt.host);
-            c.putKeyString(evt.metric);
-            c.putValueByteArray(evt.val);
-            c.insert();
-          }
-          done = true;
-          if(batch >= count)
-            break;
-        } catch(WiredTigerRollbackException e) {
-          //session.rollback_transaction(tnx);
-          log.info("ingestor roll back");
-        } finally {
-          if(done) {
-            //session.commit_transaction(null);
-            counter.addAndGet(batch);
-            total += batch;
-          }
+          CompletableFuture.allOf(acks).get();
+          counter.add(batch);
+          total += batch;
+        } catch(InterruptedException e) {
+          break;
+        } catch(ExecutionException e) {
+          log.info("ingestor batch failed {}", e.getCause());
         }
+        if(batch >= count)
+          break;
         if(total%100000 == 0) {
           log.info("total {}", total);
         }
       }
-      c.close();
-      session.close(null);
-      log.info("ingestor ends {}", counter.get());
+      log.info("ingestor ends {}", counter.sum());
     }
 
   }
 
-  public static class TTLMonitor implements Runnable {
-    Session session;
+  static long past(int seconds) {
+    return Instant.now().toEpochMilli() - seconds*1000;
+  }
+
+  public interface RowConsumer {
+    void accept(long ts, String host, String metric, byte[] val);
+  }
+
+  /**
+   * A time range with optional host and metric predicates. The planner walks
+   * the series-first index (host, metric, ts) of each window when a host is
+   * given, so a single machine never scans other hosts' rows; otherwise it
+   * scans the time-first tables from the start of the range.
+   */
+  public static class Query {
+    public enum Path { TIME, SERIES }
+
+    final long from;
+    final long to;
+    final String host;
+    final String metric;
+
+    public Query(long from, long to, String host, String metric) {
+      this.from = from;
+      this.to = to;
+      this.host = host;
+      this.metric = metric;
+    }
 
-    public TTLMonitor() {
-      this.session = conn.open_session(null);
-      this.session.create(table, storage);
+    public Path plan() {
+      return host != null ? Path.SERIES : Path.TIME;
     }
 
-    public void run() {
-      int interval = 3;
-      while(!stop) {
-        try {Thread.currentThread().sleep(interval*1000);} catch(Exception ex) {}
-        Cursor start = null;
-        Cursor stop = null;
-        boolean done = false;
+    /**
+     * Runs on the calling thread's pooled session, inside whatever
+     * transaction the caller began on it.
+     */
+    public long run(SessionPool pool, RowConsumer consumer) {
+      long rows = 0;
+      Path path = plan();
+      for(String t : retention.tables(from, to)) {
+        String uri = path == Path.SERIES ? RetentionManager.index(t, seriesindex) + "(val)" : t;
+        Cursor c = pool.acquire(uri);
         try {
-          session.snapshot("name=past");
-          //session.begin_transaction(tnx);
-          Event evt1 = EventFactory.getStartEvent();
-          Cursor mc = session.open_cursor(table, null, null);
-          mc.putKeyLong(evt1.ts);
-          mc.putKeyString(evt1.host);
-          mc.putKeyString(evt1.metric);
-          mc.putValueByteArray(evt1.val);
-          mc.insert();
-          Event evt2 = EventFactory.getEndEvent(past(interval*10));
-          mc.putKeyLong(evt2.ts);
-          mc.putKeyString(evt2.host);
-          mc.putKeyString(evt2.metric);
-          mc.putValueByteArray(evt2.val);
-          mc.insert();
-          mc.close();
-          start = session.open_cursor(table, null, null);
-          start.putKeyLong(evt1.ts);
-          start.putKeyString(evt1.host);
-          start.putKeyString(evt1.metric);
-          start.putValueByteArray(evt1.val);
-          int r1 = start.search();
-          stop = session.open_cursor(table, null, null);
-          stop.putKeyLong(evt2.ts);
-          stop.putKeyString(evt2.host);
-          stop.putKeyString(evt2.metric);
-          stop.putValueByteArray(evt2.val);
-          int r2 = stop.search();
-          if(r1==0 && r2==0) {
-            int nd = 0;
-            log.info("start delete");
-            while(start.next()==0) {
-              long ts = start.getKeyLong();
-              String host = start.getKeyString();
-              String metric = start.getKeyString();
-              if (ts == evt2.ts && host == evt2.host && metric == evt2.metric)
-                break;
-              start.putKeyLong(ts);
-              start.putKeyString(host);
-              start.putKeyString(metric);
-              start.remove();
-              nd++;
-            }
-            log.info("delete {}", nd);
-          }
-          done = true;
-          /*if(r1==0 && r2==0) {
-            int ret = session.truncate(null, start, stop, null);
-            log.info("truncate ret {} for the past {} seconds ", ret, (stop.getKeyLong() - start.getKeyLong())/1000);
-          } else {
-            log.info("not found");
-            }*/
-        } catch(WiredTigerRollbackException e) {
-          log.info("ttl monitor roll back");
+          rows += path == Path.SERIES ? series(c, consumer) : time(c, consumer);
         } finally {
-          if(start != null)
-            start.close();
-          if(stop != null)
-            stop.close();
-          if(done) {
-            //session.commit_transaction(null);
-          } else {
-            //session.rollback_transaction(tnx);
-          }
-          session.snapshot("drop=(all)");
+          pool.release(uri, c);
         }
       }
-      ttlstopped = true;
-      log.info("TTL scanning ends ");
+      return rows;
     }
-  }
 
-  static long past(int seconds) {
-    return Instant.now().toEpochMilli() - seconds*1000;
+    private long time(Cursor c, RowConsumer consumer) {
+      long rows = 0;
+      c.putKeyLong(from);
+      SearchStatus status = c.search_near();
+      if(status == SearchStatus.NOTFOUND)
+        return 0;
+      if(status == SearchStatus.SMALLER && c.next() != 0)
+        return 0;
+      do {
+        long ts = c.getKeyLong();
+        if(ts > to)
+          break;
+        String h = c.getKeyString();
+        String m = c.getKeyString();
+        if(metric != null && !metric.equals(m))
+          continue;
+        consumer.accept(ts, h, m, c.getValueByteArray());
+        rows++;
+      } while(c.next() == 0);
+      return rows;
+    }
+
+    private long series(Cursor c, RowConsumer consumer) {
+      long rows = 0;
+      c.putKeyString(host);
+      c.putKeyString(metric != null ? metric : "");
+      c.putKeyLong(metric != null ? from : Long.MIN_VALUE);
+      SearchStatus status = c.search_near();
+      if(status == SearchStatus.NOTFOUND)
+        return 0;
+      if(status == SearchStatus.SMALLER && c.next() != 0)
+        return 0;
+      do {
+        String h = c.getKeyString();
+        String m = c.getKeyString();
+        long ts = c.getKeyLong();
+        if(!host.equals(h) || (metric != null && !metric.equals(m)))
+          break;
+        if(ts < from || ts > to)
+          continue;
+        consumer.accept(ts, h, m, c.getValueByteArray());
+        rows++;
+      } while(c.next() == 0);
+      return rows;
+    }
   }
 
   public static class Analyst implements Runnable {
 
     private Random rnd;
     private int interval;
+    private GroupBy groups;
 
     public Analyst() {
       rnd = new Random();
       interval = 10;
+      groups = new GroupBy();
     }
 
-    private void report(List<Event> evts) {
-      log.info("For the past {} seconds, select count(*) from events group by host, metric rows = {}", interval,
-               evts
-               .stream()
-               .collect((
-                         Collectors.groupingBy(
-                                               evt -> Tuple.tuple(evt.host, evt.metric),
-                                               Collectors.counting())))
-               .entrySet().stream()
-               .sorted(Comparator.comparing(Map.Entry::getKey))
-               .collect(Collectors.toList())
-               .size()
-               );
+    private void report(GroupBy groups) {
+      log.info("For the past {} seconds, select count(*) from events group by host, metric rows = {} scanned = {}",
+               interval, groups.size(), groups.rows());
     }
 
     public void run() {
-      int ret;
-      Session session = conn.open_session(null);
-      session.create(table, storage);
+      Session session = sessions.session();
       while(!stop) {
         try {Thread.currentThread().sleep(rnd.nextInt(2000));} catch(Exception ex) {}
-        Cursor c = null;
-        List<Event> evts = new ArrayList<Event>();
+        groups.clear();
+        long ts = past(interval);
+        SnapshotManager.Snapshot snap = snapshots.begin(session);
         try {
-          session.snapshot("name=past");
-          c = session.open_cursor(table, null, null);
-          long ts = past(10);
-          c.putKeyLong(ts);
-          SearchStatus status = c.search_near();
-          switch(status) {
-          case NOTFOUND:
-            //log.info("no data points");
-            break;
-          case SMALLER:
-            //log.info("beyond time horizon {}", (ts-c.getKeyLong())/1000.0);
-            break;
-          case FOUND:
-          case LARGER:
-            do {
-              evts.add(new Event(c.getKeyLong(), c.getKeyString(), c.getKeyString()));
-            } while(c.next() == 0);
-            break;
-          }
+          new Query(ts, System.currentTimeMillis(), null, null).run(sessions, (t, host, metric, val) ->
+              groups.accept(host, metric, ByteBuffer.wrap(val).getDouble()));
         } catch(WiredTigerRollbackException e) {
           log.info("analyst roll back");
         } catch(WiredTigerException e) {
           log.info("analyst {}", e);
         } finally {
-          if(c != null)
-            c.close();
-          session.snapshot("drop=(all)");
+          snapshots.end(session, snap);
+        }
+        if(groups.rows() > 0)
+          report(groups);
+      }
+    }
+
+  }
+
+  /**
+   * Reads the last minute of one random host through the series-first path.
+   */
+  public static class Dashboard implements Runnable {
+    private Random rnd;
+    private int interval;
+
+    public Dashboard() {
+      rnd = new Random();
+      interval = 60;
+    }
+
+    public void run() {
+      Session session = sessions.session();
+      while(!stop) {
+        try {Thread.currentThread().sleep(rnd.nextInt(2000));} catch(Exception ex) {}
+        Query q = new Query(past(interval), System.currentTimeMillis(), "host"+rnd.nextInt(10000000), null);
+        SnapshotManager.Snapshot snap = snapshots.begin(session);
+        try {
+          long t1 = System.nanoTime();
+          long rows = q.run(sessions, (ts, host, metric, val) -> {});
+          log.info("dashboard {} plan {} rows {} in {} ms", q.host, q.plan(), rows, (System.nanoTime()-t1)/1e6);
+        } catch(WiredTigerRollbackException e) {
+          log.info("dashboard roll back");
+        } catch(WiredTigerException e) {
+          log.info("dashboard {}", e);
+        } finally {
+          snapshots.end(session, snap);
         }
-        if(evts.size() > 0)
-          report(evts);
       }
-      session.close(null);
     }
 
   }
 
   private static volatile boolean stop = false;
-  private static boolean ttlstopped = false;
 
   private static final String db = "./tsdb";
   private static final String table = "table:metrics";
   private static final String cols = "columns=(ts,host,metric,val)";
   private static final String storage = "type=lsm,key_format=qSS,value_format=u,"+cols;
   private static final String tnx = "isolation=snapshot";
+  private static final long window = 10000;
+  private static final int commitBatch = 1000;
+  private static final long commitLatency = 5;
   private static final int ttl = 3000;
-  private static final String ttlindex = "index:metrics:ttl";
-  private static final String ttlcol = "columns=(ttl)";
-  private static final String tsindex = "index:metrics:ts";
-  private static final String tscol = "columns=(ts)";
+  private static final String seriesindex = "series";
+  private static final String seriescol = "type=lsm,columns=(host,metric,ts)";
 
-  static AtomicInteger counter = new AtomicInteger(0);
+  static final Metrics metrics = new Metrics(1000);
+  static final LongAdder counter = metrics.counter("ingest.events");
 
   private static void init() {
     checkDir(db);
-    conn = wiredtiger.open(db, "create,statistics=(all),statistics_log=(wait=10)");
+    conn = wiredtiger.open(db, "create,statistics=(all),log=(enabled)");
+    metrics.wiredtiger("wt", conn, "statistics:");
+    metrics.jvm();
+    retention = new RetentionManager(conn, table, storage, Collections.singletonMap(seriesindex, seriescol),
+                                     window, ttl*10, ttl);
+    group = new GroupCommit(conn, commitBatch, commitLatency, "sync=on");
+    snapshots = new SnapshotManager(conn, "past", 1000);
+    sessions = new SessionPool(conn);
+    retention.onDrop(sessions::forget);
   }
 
   private static Connection conn;
+  private static RetentionManager retention;
+  private static GroupCommit group;
+  private static SnapshotManager snapshots;
+  private static SessionPool sessions;
 
   public static void main( String[] args ) throws Exception {
     init();
@@ -384,25 +392,47 @@ public class TimeSeriesDB {
       new Thread(new Analyst()).start();
     }
 
-    new Thread(new TTLMonitor()).start();
+    new Thread(new Dashboard()).start();
+
+    metrics.register("xdb:type=Metrics,name=TimeSeriesDB");
+    metrics.serve(9100);
+    Thread poller = new Thread(metrics);
+    poller.start();
+
+    Thread reaper = new Thread(retention);
+    reaper.start();
+    Thread publisher = new Thread(snapshots);
+    publisher.start();
 
     while(true) {
-      int c1= counter.get();
+      long c1 = counter.sum();
       try {Thread.currentThread().sleep(1000);} catch(Exception ex) {}
-      int c2 = counter.get();
+      long c2 = counter.sum();
       if(c2 >= count) {
         stop = true;
         break;
       }
       log.info("evts processed {} {}/{}", c2-c1, c2, count);
     }
-    log.info("counter={}", counter.get());
+    log.info("counter={}", counter.sum());
     Session session = conn.open_session(null);
-    session.create(table, storage);
     try {Thread.currentThread().sleep(10000);} catch(Exception ex) {}
-    log.info("THE END");
-    session.compact(table, null);
-    session.drop(table, null);
+    group.close();
+    snapshots.stop();
+    publisher.join();
+    snapshots.close();
+    retention.stop();
+    reaper.join();
+    log.info("THE END, retention reclaimed {} bytes", retention.reclaimed());
+    sessions.close();
+    for(String t : retention.tables()) {
+      session.compact(t, null);
+      session.drop(t, null);
+    }
+    retention.close();
+    metrics.stop();
+    poller.join();
+    metrics.close();
     conn.close(null);
   }
 
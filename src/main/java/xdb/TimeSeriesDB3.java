@@ -9,7 +9,7 @@ import java.util.*;
 import java.util.stream.*;
 import java.util.concurrent.*;
 import java.time.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TimeSeriesDB3 {
   private static Logger log = LogManager.getLogger(TimeSeriesDB3.class);
@@ -107,12 +107,6 @@ public class TimeSeriesDB3 {
       rnd = new Random(numhosts+nummetrics);
     }
 
-    private static byte[] payload = new byte[1000];
-    public static Event getNextEvent() {
-      UUID guid = UUID.randomUUID();
-      return new Event("hosts"+guid, "metrics"+guid.getLeastSignificantBits(), Instant.now().toEpochMilli(), payload);
-    }
-
     public static Event getStartEvent() {
       return new Event("zzzz", "zzzz", 0, new byte[64]);
     }
@@ -138,30 +132,63 @@ public class TimeSeriesDB3 {
   public static class Ingestor implements Runnable {
     int count;
     int id;
-    public Ingestor(int count, int id) {
+    int of;
+    public Ingestor(int count, int id, int of) {
       this.count = count;
       this.id = id;
+      this.of = of;
+    }
+
+    // ingestor id owns the hosts h with h % of == id, so no two ingestors
+    // ever write the same series
+    private int host(int h) {
+      h = h - h % of + id;
+      return h < numhosts ? h : h - of;
     }
 
     public void run() {
       log.info("ingestor starts {}", id);
-      Connection conn = init(db+id);
-      Session session = conn.open_session(null);
-      String tablet = table+id;
-      session.create(tablet, storage);
+      int n = shards.size();
+      Workload w = workload.fork(id);
+      Session[] sessions = new Session[n];
+      Cursor[] cursors = new Cursor[n];
+      for(int i = 0; i < n; i++) {
+        sessions[i] = shards.get(i).open_session(null);
+        cursors[i] = sessions[i].open_cursor(table, null, null);
+      }
       int batch = 10000;
       int total = 0;
       byte[] val = new byte[1000];
-      Cursor c = session.open_cursor(tablet, null, null);
+      // stamp of the ms each owned series was last written in, a hot series
+      // is written at most once per ms
+      int[] seen = new int[(numhosts + of - 1) / of * nummetrics];
+      int stamp = 0;
+      long ts = Long.MIN_VALUE;
       while(!stop) {
         boolean done = false;
         try {
-          session.begin_transaction(tnx);
-          for(int i = 0; i < batch; i++) {
-            Event evt = EventFactory.getNextEvent();
-            c.putKeyLong(evt.ts);
-            c.putKeyString(evt.host);
-            c.putKeyString(evt.metric);
+          for(Session session : sessions)
+            session.begin_transaction(tnx);
+          int i = 0;
+          while(i < batch) {
+            int k = w.next();
+            if(w.ts() != ts) {
+              ts = w.ts();
+              stamp++;
+            }
+            int h = host(k / nummetrics);
+            int s = h / of * nummetrics + k % nummetrics;
+            if(seen[s] == stamp)
+              continue;
+            seen[s] = stamp;
+            i++;
+            String host = hostNames.get(h);
+            String metric = metricNames.get(k % nummetrics);
+            Cursor c = cursors[shards.route(host, metric)];
+            c.putKeyLong(w.ts());
+            c.putKeyString(host);
+            c.putKeyString(metric);
+            w.payload(val);
             c.putValueByteArray(val);
             c.insert();
           }
@@ -169,12 +196,16 @@ public class TimeSeriesDB3 {
           if(batch >= count)
             break;
         } catch(WiredTigerRollbackException e) {
-          session.rollback_transaction(tnx);
           log.info("ingestor roll back");
         } finally {
+          for(Session session : sessions) {
+            if(done)
+              session.commit_transaction(null);
+            else
+              session.rollback_transaction(null);
+          }
           if(done) {
-            session.commit_transaction(null);
-            counter.addAndGet(batch);
+            counter.add(batch);
             total += batch;
           }
         }
@@ -182,9 +213,11 @@ public class TimeSeriesDB3 {
           //log.info("total {}", total);
         }
       }
-      c.close();
-      session.close(null);
-      log.info("ingestor ends {}", counter.get());
+      for(int i = 0; i < n; i++) {
+        cursors[i].close();
+        sessions[i].close(null);
+      }
+      log.info("ingestor ends {}", counter.sum());
     }
 
   }
@@ -192,7 +225,7 @@ public class TimeSeriesDB3 {
   public static class TTLMonitor implements Runnable {
     Session session;
 
-    public TTLMonitor() {
+    public TTLMonitor(Connection conn) {
       this.session = conn.open_session(null);
       this.session.create(table, storage);
     }
@@ -286,70 +319,35 @@ public class TimeSeriesDB3 {
     private Random rnd;
     private int interval;
     private int id;
+    private GroupBy groups;
 
     public Analyst(int id) {
       rnd = new Random();
       interval = 10;
       this.id = id;
+      groups = new GroupBy();
     }
 
-    private void report(List<Event> evts) {
-      log.info("For the past {} seconds, select count(*) from events group by host, metric rows = {}", interval,
-               evts
-               .stream()
-               .collect((
-                         Collectors.groupingBy(
-                                               evt -> Tuple.tuple(evt.host, evt.metric),
-                                               Collectors.counting())))
-               .entrySet().stream()
-               .sorted(Comparator.comparing(Map.Entry::getKey))
-               .collect(Collectors.toList())
-               .size()
-               );
+    private void report(GroupBy groups) {
+      log.info("For the past {} seconds, select count(*) from events group by host, metric rows = {} scanned = {}",
+               interval, groups.size(), groups.rows());
     }
 
     public void run() {
-      int ret;
-      Session session = conn.open_session(null);
-      session.create(table, storage);
-      String tablet = table+id;
       while(!stop) {
         try {Thread.currentThread().sleep(rnd.nextInt(2000));} catch(Exception ex) {}
-        Cursor c = null;
-        List<Event> evts = new ArrayList<Event>();
+        groups.clear();
         try {
-          session.snapshot("name=past");
-          c = session.open_cursor(tablet, null, null);
-          long ts = past(10);
-          c.putKeyLong(ts);
-          SearchStatus status = c.search_near();
-          switch(status) {
-          case NOTFOUND:
-            //log.info("no data points");
-            break;
-          case SMALLER:
-            //log.info("beyond time horizon {}", (ts-c.getKeyLong())/1000.0);
-            break;
-          case FOUND:
-          case LARGER:
-            do {
-              evts.add(new Event(c.getKeyLong(), c.getKeyString(), c.getKeyString()));
-            } while(c.next() == 0);
-            break;
-          }
+          shards.scan(past(interval), Instant.now().toEpochMilli(), (ts, host, metric, val) ->
+              groups.accept(host, metric, ByteBuffer.wrap(val).getDouble()));
         } catch(WiredTigerRollbackException e) {
           log.info("analyst roll back");
         } catch(WiredTigerException e) {
           log.info("analyst {}", e);
-        } finally {
-          if(c != null)
-            c.close();
-          session.snapshot("drop=(all)");
         }
-        if(evts.size() > 0)
-          report(evts);
+        if(groups.rows() > 0)
+          report(groups);
       }
-      session.close(null);
     }
 
   }
@@ -368,50 +366,71 @@ public class TimeSeriesDB3 {
   private static final String tsindex = "index:metrics:ts";
   private static final String tscol = "columns=(ts)";
 
-  static AtomicInteger counter = new AtomicInteger(0);
+  static final Metrics metrics = new Metrics(1000);
+  static final LongAdder counter = metrics.counter("ingest.events");
 
-  private static Connection init(String db) {
-    checkDir(db);
-    Connection conn = wiredtiger.open(db, "create,cache_size=1GB,eviction=(threads_max=2,threads_min=2),lsm_manager=(merge=true,worker_thread_max=3), checkpoint=(log_size=2GB,wait=3600)");
-    return conn;
-  }
+  private static final long cache = 4L << 30;
+  private static final String config = "eviction=(threads_max=2,threads_min=2),lsm_manager=(merge=true,worker_thread_max=3), checkpoint=(log_size=2GB,wait=3600),statistics=(fast)";
+
+  private static ShardManager shards;
 
-  private static Connection conn;
+  // 10M series, zipf skewed, 100 points per ms, 1000 byte payloads of 4 bits per byte
+  private static final int numhosts = 100000;
+  private static final int nummetrics = 100;
+  private static final Workload workload = new Workload(42, numhosts * nummetrics)
+    .zipf(0.99).timeline(Instant.now().toEpochMilli(), 100, 0).payload(1000, 1000, 4);
+  private static final Workload.Names hostNames = new Workload.Names("host", numhosts);
+  private static final Workload.Names metricNames = new Workload.Names("metric", nummetrics);
 
   public static void main( String[] args ) throws Exception {
-    conn = init(db);
+    List<byte[]> samples = workload.samples(4096);
+    Extensions ext = new Extensions("snappy", "zlib");
+    shards = new ShardManager(db, Runtime.getRuntime().availableProcessors(), cache, config + ext.config(), table, storage,
+                              samples, ext.compressors());
+    for(int i = 0; i < shards.size(); i++)
+      metrics.wiredtiger("wt.shard" + i, shards.get(i), "statistics:");
+    metrics.jvm();
+    metrics.register("xdb:type=Metrics,name=TimeSeriesDB3");
+    metrics.serve(9100);
+    Thread poller = new Thread(metrics);
+    poller.start();
     int count = 2000000000;
     int pn = 64;
     int rn = 0;
 
     for (int i= 0; i < pn; i++) {
-      new Thread(new Ingestor(count/pn, i)).start();
+      new Thread(new Ingestor(count/pn, i, pn)).start();
     }
 
     for (int i= 0; i < rn; i++) {
       new Thread(new Analyst(i)).start();
     }
 
-    //new Thread(new TTLMonitor()).start();
+    //new Thread(new TTLMonitor(shards.get(0))).start();
 
     while(true) {
-      int c1= counter.get();
+      long c1 = counter.sum();
       try {Thread.currentThread().sleep(1000);} catch(Exception ex) {}
-      int c2 = counter.get();
+      long c2 = counter.sum();
       if(c2 >= count) {
         stop = true;
         break;
       }
       log.info("evts processed {} {}/{}", c2-c1, c2, count);
     }
-    log.info("counter={}", counter.get());
-    Session session = conn.open_session(null);
-    session.create(table, storage);
+    log.info("counter={}", counter.sum());
     try {Thread.currentThread().sleep(10000);} catch(Exception ex) {}
     log.info("THE END");
-    session.compact(table, null);
-    session.drop(table, null);
-    conn.close(null);
+    for(int i = 0; i < shards.size(); i++) {
+      Session session = shards.get(i).open_session(null);
+      session.compact(table, null);
+      session.drop(table, null);
+      session.close(null);
+    }
+    metrics.stop();
+    poller.join();
+    metrics.close();
+    shards.close();
   }
 
 }
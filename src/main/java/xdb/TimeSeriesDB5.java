@@ -29,23 +29,22 @@ public class TimeSeriesDB5 {
   public static class Ingestor implements Runnable {
     String table;
     int id;
+    Workload w;
 
     public Ingestor(String table, int id) {
       this.table = table;
       this.id = id;
+      this.w = workload.fork(id);
     }
 
+    // wall clock ts, the tiers age rows by it; the low byte keeps ingestors apart
     private byte[] getKey() {
-      UUID uuid = UUID.randomUUID();
-      long hi = uuid.getMostSignificantBits();
-      long lo = uuid.getLeastSignificantBits();
-      return ByteBuffer.allocate(16).putLong(hi).putLong(lo).array();
+      long key = (long)w.next() << 8 | id;
+      return tier.codec().encode(0, System.currentTimeMillis(), key);
     }
 
     public void run() {
-      Random rnd = new Random();
       Session session = conn.open_session(null);
-      session.create(table, storage);
       log.info("ingestor {} starts", id);
       int batch = 1024;
       int total = 0;
@@ -60,7 +59,7 @@ public class TimeSeriesDB5 {
           session.begin_transaction(tnx);
           for(int i = 0; i < batch; i++) {
             c.putKeyByteArray(getKey());
-            rnd.nextBytes(val);
+            w.payload(val);
             c.putValueByteArray(val);
             c.insert();
           }
@@ -88,42 +87,32 @@ public class TimeSeriesDB5 {
   }
 
   public static class Analyst implements Runnable {
-    String table;
     int id;
 
-    public Analyst(String table, int id) {
-      this.table = table;
+    public Analyst(int id) {
       this.id = id;
     }
 
     public void run() {
-      int ret;
       try {Thread.currentThread().sleep(10000);} catch(Exception ex) {}
-      Session session = conn.open_session(null);
-      session.create(table, storage);
       while(true) {
-        Cursor c = null;
-        long count = 0, t1 = 0, t2 = 0;
-        try {
-          c = session.open_cursor(table, null, null);
-          t1 = System.nanoTime();
-          while(c.next() == 0) {
-            byte[] key = c.getKeyByteArray();
-            byte[] val = c.getValueByteArray();
-            count++;
-          }
-          t2 = System.nanoTime();
+        long count = 0;
+        long t1 = System.nanoTime();
+        // every range reads the same named snapshot, so a row is in exactly one tier
+        SnapshotManager.Snapshot snap = snapshots.pin();
+        String cfg = "snapshot=" + snap.name;
+        try(Stream<TableScanner.Row> rows = Stream.concat(scanner.stream(tier.hot(), cfg), scanner.stream(tier.cold(), cfg))) {
+          count = rows.count();
         } catch(WiredTigerRollbackException e) {
           log.info("analyst roll back");
         } catch(WiredTigerException e) {
           log.info("analyst {}", e);
         } finally {
-          if(c != null)
-            c.close();
+          snapshots.release(snap);
         }
-        log.info("reader {} read {} rows in {} \n", id, count, (t2-t1)/1e9);
+        long t2 = System.nanoTime();
+        log.info("reader {} read {} rows from both tiers in {} \n", id, count, (t2-t1)/1e9);
       }
-      //session.close(null);
     }
 
   }
@@ -132,60 +121,62 @@ public class TimeSeriesDB5 {
   private static final String hottable = "table:hot";
   private static final String coldtable = "table:cold";
   private static final String storage = "type=lsm,key_format=u,value_format=u";
+  private static final String coldstorage = "type=file,key_format=u,value_format=u,prefix_compression=true,leaf_page_max=64KB";
   private static final String tnx = "isolation=snapshot";
+  private static final long age = 60000;
+
+  // 1024 byte incompressible payloads
+  private static final Workload workload = new Workload(42, Integer.MAX_VALUE).payload(1024, 1024, 8);
 
   static AtomicInteger counter = new AtomicInteger(0);
 
   private static Connection init(String db) {
     checkDir(db);
-    Connection conn = wiredtiger.open(db, "create,cache_size=1GB,eviction=(threads_max=2,threads_min=2),lsm_manager=(merge=true,worker_thread_max=3), checkpoint=(log_size=2GB,wait=3600)");
+    Extensions ext = new Extensions("snappy", "zlib");
+    Connection conn = wiredtiger.open(db, "create,cache_size=1GB,eviction=(threads_max=2,threads_min=2),lsm_manager=(merge=true,worker_thread_max=3), checkpoint=(log_size=2GB,wait=3600)" + ext.config());
+    TableProvisioner provisioner = new TableProvisioner(conn, ext.compressors());
+    List<byte[]> samples = workload.samples(4096);
+    tier = new TierManager(conn,
+                           hottable, provisioner.configure(hottable, storage, samples),
+                           coldtable, provisioner.configure(coldtable, coldstorage, samples),
+                           BucketCodec.none(), age, 5000);
+    scanner = new TableScanner(conn, Runtime.getRuntime().availableProcessors());
+    snapshots = new SnapshotManager(conn, "scan", 1000);
     Session session = conn.open_session(null);
-    session.create(hottable, storage);
-    session.create(coldtable, storage);
     session.checkpoint(null);
     session.close(null);
     return conn;
   }
 
   private static Connection conn;
+  private static TierManager tier;
+  private static TableScanner scanner;
+  private static SnapshotManager snapshots;
   private static boolean stop;
 
   public static void main( String[] args ) throws Exception {
 
     conn = init(db);
 
-    log.info("start writing into cold table");
+    log.info("start writing into hot table, rows older than {} ms move to cold", age);
+    new Thread(tier).start();
     stop = false;
     int nw = 15;
     for (int i= 0; i < nw; i++) {
-      new Thread(new Ingestor(coldtable, i)).start();
-    }
-
-    int n = 300;
-
-    while(n-->0) {
-      try {Thread.currentThread().sleep(1000);} catch(Exception ex) {}
-      if(n%30 == 0)
-        log.info("evts processed {} n = {}", counter.get(), n);
+      new Thread(new Ingestor(tier.hot(), i)).start();
     }
 
-    stop = true;
+    try {Thread.currentThread().sleep(10000);} catch(Exception ex) {}
     log.info("start readers");
+    new Thread(snapshots).start();
     int nr = 3;
     for (int i= 0; i < nr; i++) {
-      new Thread(new Analyst(coldtable, i)).start();
-    }
-
-    try {Thread.currentThread().sleep(10000);} catch(Exception ex) {}
-    log.info("start writing into hot table");
-    stop = false;
-    for (int i= 0; i < nw; i++) {
-      new Thread(new Ingestor(hottable, i)).start();
+      new Thread(new Analyst(i)).start();
     }
 
     while(true) {
       try {Thread.currentThread().sleep(30000);} catch(Exception ex) {}
-      log.info("evts processed {}", counter.get());
+      log.info("evts processed {} moved to cold {}", counter.get(), tier.moved());
     }
     //conn.close(null);
   }
@@ -29,25 +29,23 @@ public class TimeSeriesDB6 {
   public static class Ingestor implements Runnable {
     String table;
     int id;
-    Random rnd;
+    Workload w;
 
     public Ingestor(String table, int id) {
       this.table = table;
       this.id = id;
-      this.rnd = new Random();
+      this.w = workload.fork(id);
     }
 
+    // wall clock ts, the tiers age rows by it; the low byte keeps ingestors apart
     private byte[] getKey() {
-      UUID uuid = UUID.randomUUID();
-      long hi = uuid.getMostSignificantBits();
-      long lo = uuid.getLeastSignificantBits();
-      return ByteBuffer.allocate(14).putShort((short)rnd.nextInt(60)).putLong(hi).putInt((int)lo).array();
+      BucketCodec codec = tier.codec();
+      int k = w.next();
+      return codec.encode(k % codec.buckets, System.currentTimeMillis(), (long)k << 8 | id);
     }
 
     public void run() {
-      Random rnd = new Random();
       Session session = conn.open_session(null);
-      session.create(table, storage);
       log.info("ingestor {} starts", id);
       int batch = 1024;
       int total = 0;
@@ -62,7 +60,7 @@ public class TimeSeriesDB6 {
           session.begin_transaction(tnx);
           for(int i = 0; i < batch; i++) {
             c.putKeyByteArray(getKey());
-            rnd.nextBytes(val);
+            w.payload(val);
             c.putValueByteArray(val);
             c.insert();
           }
@@ -90,76 +88,30 @@ public class TimeSeriesDB6 {
   }
 
   public static class Analyst implements Runnable {
-    String table;
     int id;
 
-    public Analyst(String table, int id) {
-      this.table = table;
+    public Analyst(int id) {
       this.id = id;
     }
 
     public void run() {
-      int ret;
       try {Thread.currentThread().sleep(10000);} catch(Exception ex) {}
-      Session session = conn.open_session(null);
-      session.create(table, storage);
       while(true) {
-        Cursor c = null;
-        long count = 0, t1 = 0, t2 = 0;
-        byte[] skey = new byte[2];
+        long[] stats = new long[2];
+        long t1 = System.nanoTime();
         try {
-          c = session.open_cursor(table, null, null);
-          t1 = System.nanoTime();
-          for (int i = 0; i < 60; i++) {
-            //byte[] skey = ByteBuffer.allocate(2).putShort((short)i).array();
-            skey[0] = (byte)(i&0xF0);
-            skey[1] = (byte)(i&0x0F);
-            c.putKeyByteArray(skey);
-            SearchStatus status = c.search_near();
-            switch(status) {
-            case NOTFOUND:
-              log.info("no data points for time period {}", i);
-              break;
-            case SMALLER:
-              //log.info("scan smaller time period {}", i);
-              do {
-                byte[] key = c.getKeyByteArray();
-                int t = key[0]<<8|key[0];
-                //int t = key[0];
-                //log.info("S i = {} t = {}", i, t);
-                if (t != i) break;
-                byte[] val = c.getValueByteArray();
-                count++;
-              } while(c.prev() == 0);
-              break;
-            case FOUND:
-            case LARGER:
-              //log.info("scan bigger time period {}", i);
-              do {
-                byte[] key = c.getKeyByteArray();
-                int t = key[0]<<8|key[0];
-                //int t = key[0];
-                //int t = key[1]<<8 | key[0];
-                //log.info("L i = {} t = {}", i, t);
-                if (t != i) break;
-                byte[] val = c.getValueByteArray();
-                count++;
-              } while(c.next() == 0);
-              break;
-            }
-          }
-          t2 = System.nanoTime();
+          stats = scanner.scan(tier, 0, Long.MAX_VALUE, tnx,
+                               () -> new long[2],
+                               (acc, key, val) -> { acc[0]++; acc[1] += val.length; },
+                               (a, b) -> { a[0] += b[0]; a[1] += b[1]; return a; });
         } catch(WiredTigerRollbackException e) {
           log.info("analyst roll back");
-        } catch(WiredTigerException e) {
+        } catch(RuntimeException e) {
           log.info("analyst {}", e);
-        } finally {
-          if(c != null)
-            c.close();
         }
-        log.info("reader {} read {} rows in {} \n", id, count, (t2-t1)/1e9);
+        long t2 = System.nanoTime();
+        log.info("reader {} read {} rows {} bytes from {} buckets in {} \n", id, stats[0], stats[1], tier.codec().buckets, (t2-t1)/1e9);
       }
-      //session.close(null);
     }
 
   }
@@ -168,60 +120,60 @@ public class TimeSeriesDB6 {
   private static final String hottable = "table:hot";
   private static final String coldtable = "table:cold";
   private static final String storage = "type=lsm,key_format=u,value_format=u";
+  private static final String coldstorage = "type=file,key_format=u,value_format=u,prefix_compression=true,leaf_page_max=64KB";
   private static final String tnx = "isolation=snapshot";
+  private static final int buckets = 60;
+  private static final long age = 60000;
+
+  // 1024 byte incompressible payloads
+  private static final Workload workload = new Workload(42, Integer.MAX_VALUE).payload(1024, 1024, 8);
 
   static AtomicInteger counter = new AtomicInteger(0);
 
   private static Connection init(String db) {
     checkDir(db);
-    Connection conn = wiredtiger.open(db, "create,cache_size=1GB,eviction=(threads_max=2,threads_min=2),lsm_manager=(merge=true,worker_thread_max=3), checkpoint=(log_size=2GB,wait=3600)");
+    Extensions ext = new Extensions("snappy", "zlib");
+    Connection conn = wiredtiger.open(db, "create,cache_size=1GB,eviction=(threads_max=2,threads_min=2),lsm_manager=(merge=true,worker_thread_max=3), checkpoint=(log_size=2GB,wait=3600)" + ext.config());
+    TableProvisioner provisioner = new TableProvisioner(conn, ext.compressors());
+    List<byte[]> samples = workload.samples(4096);
+    tier = new TierManager(conn,
+                           hottable, provisioner.configure(hottable, storage, samples),
+                           coldtable, provisioner.configure(coldtable, coldstorage, samples),
+                           new BucketCodec(2, buckets), age, 5000);
+    scanner = new BucketScanner(conn, Runtime.getRuntime().availableProcessors());
     Session session = conn.open_session(null);
-    session.create(hottable, storage);
-    session.create(coldtable, storage);
     session.checkpoint(null);
     session.close(null);
     return conn;
   }
 
   private static Connection conn;
+  private static TierManager tier;
+  private static BucketScanner scanner;
   private static boolean stop;
 
   public static void main( String[] args ) throws Exception {
 
     conn = init(db);
 
-    log.info("start writing into cold table");
+    log.info("start writing into hot table, rows older than {} ms move to cold", age);
+    new Thread(tier).start();
     stop = false;
     int nw = 15;
     for (int i= 0; i < nw; i++) {
-      new Thread(new Ingestor(coldtable, i)).start();
+      new Thread(new Ingestor(tier.hot(), i)).start();
     }
 
-    int n = 1000;
-
-    while(n-->0) {
-      try {Thread.currentThread().sleep(1000);} catch(Exception ex) {}
-      if(n%30 == 0)
-        log.info("evts processed {} n = {}", counter.get(), n);
-    }
-
-    stop = true;
+    try {Thread.currentThread().sleep(10000);} catch(Exception ex) {}
     log.info("start readers");
     int nr = 3;
     for (int i= 0; i < nr; i++) {
-      new Thread(new Analyst(coldtable, i)).start();
-    }
-
-    try {Thread.currentThread().sleep(10000);} catch(Exception ex) {}
-    log.info("start writing into hot table");
-    stop = false;
-    for (int i= 0; i < nw; i++) {
-      new Thread(new Ingestor(hottable, i)).start();
+      new Thread(new Analyst(i)).start();
     }
 
     while(true) {
       try {Thread.currentThread().sleep(30000);} catch(Exception ex) {}
-      log.info("evts processed {}", counter.get());
+      log.info("evts processed {} moved to cold {}", counter.get(), tier.moved());
     }
     //conn.close(null);
   }
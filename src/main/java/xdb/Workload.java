@@ -0,0 +1,276 @@
+package xdb;
+
+import java.util.*;
+
+/**
+ * Deterministic synthetic workload shared by the benchmarks. Every event
+ * picks a key out of a fixed cardinality (uniform, Zipfian or hotspot
+ * skew), a timestamp from a logical clock with optional out of order
+ * jitter, a value and a payload length. The same seed and settings replay
+ * the same events; fork gives every thread its own reproducible stream.
+ *
+ * next() only advances generator state, nothing is allocated per event:
+ * key(), ts(), value() and size() read the current event, and payloads are
+ * slices of one pre-filled pool.
+ */
+public class Workload {
+  private static final int POOL = 1 << 20;
+
+  public final long seed;
+  public final int cardinality;
+
+  private long state;
+  private long seq;
+
+  // skew: 0 uniform, 1 zipf, 2 hotspot
+  private int skew;
+  private double theta, zetan, zeta2, alpha, eta;
+  private double hotKeys, hotShare;
+
+  private long start;
+  private int perMs;
+  private int jitter;
+
+  private int minSize;
+  private int maxSize;
+  private byte[] pool;
+
+  private int key;
+  private long ts;
+  private int size;
+
+  public Workload(long seed, int cardinality) {
+    this.seed = seed;
+    this.cardinality = cardinality;
+    this.state = seed;
+    this.start = 0;
+    this.perMs = 1;
+    this.minSize = 0;
+    this.maxSize = 0;
+  }
+
+  /**
+   * A new stream of the same workload, reproducible from seed and stream.
+   */
+  public Workload fork(int stream) {
+    Workload w = new Workload(mix(seed + 0x9E3779B97F4A7C15L * (stream + 1)), cardinality);
+    w.skew = skew;
+    w.theta = theta;
+    w.zetan = zetan;
+    w.alpha = alpha;
+    w.eta = eta;
+    w.zeta2 = zeta2;
+    w.hotKeys = hotKeys;
+    w.hotShare = hotShare;
+    w.start = start;
+    w.perMs = perMs;
+    w.jitter = jitter;
+    w.minSize = minSize;
+    w.maxSize = maxSize;
+    w.pool = pool;
+    return w;
+  }
+
+  /**
+   * Zipfian keys with exponent theta in (0, 1); key 0 is the hottest. Costs
+   * one pass over the cardinality to sum the zeta constant.
+   */
+  public Workload zipf(double theta) {
+    if(theta <= 0 || theta >= 1)
+      throw new IllegalArgumentException("theta " + theta + " not in (0, 1)");
+    double zeta = 0;
+    for(int i = 1; i <= cardinality; i++)
+      zeta += 1 / Math.pow(i, theta);
+    this.skew = 1;
+    this.theta = theta;
+    this.zetan = zeta;
+    this.alpha = 1 / (1 - theta);
+    this.zeta2 = 1 + Math.pow(0.5, theta);
+    this.eta = (1 - Math.pow(2.0 / cardinality, 1 - theta)) / (1 - zeta2 / zeta);
+    return this;
+  }
+
+  /**
+   * share of the events go to the first fraction of the keys.
+   */
+  public Workload hotspot(double fraction, double share) {
+    this.skew = 2;
+    this.hotKeys = Math.max(1, fraction * cardinality);
+    this.hotShare = share;
+    return this;
+  }
+
+  /**
+   * Timestamps start at start and advance one millisecond every perMs
+   * events; each is then moved up to jitter ms later, out of order.
+   */
+  public Workload timeline(long start, int perMs, int jitter) {
+    this.start = start;
+    this.perMs = Math.max(1, perMs);
+    this.jitter = jitter;
+    return this;
+  }
+
+  /**
+   * Payload lengths uniform in [min, max]. The pool holds bits of entropy
+   * per byte, 8 for incompressible payloads, fewer for compressible ones.
+   */
+  public Workload payload(int min, int max, int bits) {
+    this.minSize = min;
+    this.maxSize = Math.max(min, max);
+    this.pool = new byte[Math.max(POOL, 2 * this.maxSize)];
+    long s = mix(seed ^ 0x5DEECE66DL);
+    int mask = (1 << Math.min(8, Math.max(1, bits))) - 1;
+    for(int i = 0; i < pool.length; i++) {
+      s = mix(s);
+      pool[i] = (byte)(s & mask);
+    }
+    return this;
+  }
+
+  // splitmix64
+  private static long mix(long z) {
+    z += 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private long nextLong() {
+    state += 0x9E3779B97F4A7C15L;
+    long z = state;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private double nextDouble() {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  private int nextInt(int bound) {
+    return (int)(((nextLong() >>> 33) * bound) >>> 31);
+  }
+
+  private int pick() {
+    switch(skew) {
+    case 1: {
+      double u = nextDouble();
+      double uz = u * zetan;
+      if(uz < 1)
+        return 0;
+      if(uz < zeta2)
+        return Math.min(1, cardinality - 1);
+      return (int)Math.min(cardinality - 1, (long)(cardinality * Math.pow(eta * u - eta + 1, alpha)));
+    }
+    case 2: {
+      int hot = (int)hotKeys;
+      if(nextDouble() < hotShare || hot >= cardinality)
+        return nextInt(Math.min(hot, cardinality));
+      return hot + nextInt(cardinality - hot);
+    }
+    default:
+      return nextInt(cardinality);
+    }
+  }
+
+  /**
+   * Advances to the next event and returns its key.
+   */
+  public int next() {
+    key = pick();
+    ts = start + seq / perMs + (jitter > 0 ? nextInt(jitter + 1) : 0);
+    size = maxSize > minSize ? minSize + nextInt(maxSize - minSize + 1) : minSize;
+    seq++;
+    return key;
+  }
+
+  public int key() {
+    return key;
+  }
+
+  public long ts() {
+    return ts;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long seq() {
+    return seq;
+  }
+
+  /**
+   * A value in [0, 1) for the current event.
+   */
+  public double value() {
+    return nextDouble();
+  }
+
+  /**
+   * Copies the current event's payload into buf and returns its length.
+   */
+  public int payload(byte[] buf) {
+    if(size == 0)
+      return 0;
+    int off = nextInt(pool.length - size + 1);
+    System.arraycopy(pool, off, buf, 0, size);
+    return size;
+  }
+
+  public byte[] payload() {
+    byte[] buf = new byte[size];
+    payload(buf);
+    return buf;
+  }
+
+  /**
+   * Payloads of n events from a separate stream of the same workload, e.g.
+   * as compression samples.
+   */
+  public List<byte[]> samples(int n) {
+    Workload w = fork(-1);
+    List<byte[]> samples = new ArrayList<byte[]>(n);
+    for(int i = 0; i < n; i++) {
+      w.next();
+      samples.add(w.payload());
+    }
+    return samples;
+  }
+
+  /**
+   * prefix + id strings built once per id on first use.
+   */
+  public static class Names {
+    private final String prefix;
+    private final String[] names;
+
+    public Names(String prefix, int n) {
+      this.prefix = prefix;
+      this.names = new String[n];
+    }
+
+    public String get(int id) {
+      String s = names[id];
+      if(s == null) {
+        s = prefix + id;
+        names[id] = s;
+      }
+      return s;
+    }
+  }
+
+  /**
+   * v in decimal, zero padded to width digits.
+   */
+  public static String pad(long v, int width) {
+    char[] c = new char[width];
+    for(int i = width - 1; i >= 0; i--) {
+      c[i] = (char)('0' + v % 10);
+      v /= 10;
+    }
+    return new String(c);
+  }
+
+}
@@ -0,0 +1,73 @@
+package xdb;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.util.Random;
+
+public class GorillaBlockTest
+    extends TestCase
+{
+    public GorillaBlockTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GorillaBlockTest.class );
+    }
+
+    public void testRoundTrip()
+    {
+        Random rnd = new Random(42);
+        long[] ts = new long[5000];
+        double[] vals = new double[ts.length];
+        GorillaBlock.Encoder enc = new GorillaBlock.Encoder();
+        long t = 1470000000000L;
+        for(int i = 0; i < ts.length; i++) {
+            t += i % 7 == 0 ? rnd.nextInt(100000) - 50000 : 1000;
+            ts[i] = t;
+            vals[i] = i % 3 == 0 ? vals[Math.max(i-1, 0)] : rnd.nextDouble() * 100;
+            enc.append(ts[i], vals[i]);
+        }
+        byte[] block = enc.seal();
+        assertEquals( ts.length, GorillaBlock.count(block) );
+
+        GorillaBlock.Decoder dec = new GorillaBlock.Decoder(block);
+        for(int i = 0; i < ts.length; i++) {
+            assertTrue( dec.next() );
+            assertEquals( ts[i], dec.ts() );
+            assertEquals( Double.doubleToRawLongBits(vals[i]), Double.doubleToRawLongBits(dec.val()) );
+        }
+        assertFalse( dec.next() );
+    }
+
+    public void testPointsSealSorted()
+    {
+        GorillaBlock.Points points = new GorillaBlock.Points();
+        Random rnd = new Random(7);
+        for(int i = 0; i < 1000; i++) {
+            points.add(rnd.nextInt(5000), i);
+        }
+        GorillaBlock.Decoder dec = new GorillaBlock.Decoder(points.seal());
+        long prev = Long.MIN_VALUE;
+        int n = 0;
+        while(dec.next()) {
+            assertTrue( dec.ts() >= prev );
+            assertEquals( dec.val(), Math.floor(dec.val()) );
+            prev = dec.ts();
+            n++;
+        }
+        assertEquals( 1000, n );
+    }
+
+    public void testCompressesRegularSeries()
+    {
+        GorillaBlock.Encoder enc = new GorillaBlock.Encoder();
+        for(int i = 0; i < 1000; i++) {
+            enc.append(1000L*i, 42.0);
+        }
+        assertTrue( enc.seal().length < 1000*2 );
+    }
+}
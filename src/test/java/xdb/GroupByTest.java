@@ -0,0 +1,61 @@
+package xdb;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.util.*;
+
+public class GroupByTest
+    extends TestCase
+{
+    public GroupByTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GroupByTest.class );
+    }
+
+    private static Map<String, double[]> collect(GroupBy groups)
+    {
+        Map<String, double[]> m = new HashMap<String, double[]>();
+        groups.forEach((host, metric, count, sum, min, max) -> m.put(host + "#" + metric, new double[]{count, sum, min, max}));
+        return m;
+    }
+
+    public void testGroups()
+    {
+        GroupBy groups = new GroupBy();
+        groups.accept("h1", "cpu", 1);
+        groups.accept("h1", "cpu", 3);
+        groups.accept("h2", "cpu", 5);
+        assertEquals( 2, groups.size() );
+        assertEquals( 3, groups.rows() );
+        Map<String, double[]> m = collect(groups);
+        assertTrue( Arrays.equals(new double[]{2, 4, 1, 3}, m.get("h1#cpu")) );
+        assertTrue( Arrays.equals(new double[]{1, 5, 5, 5}, m.get("h2#cpu")) );
+    }
+
+    // a pass after clear() reuses the slots of the last one
+    public void testClear()
+    {
+        GroupBy groups = new GroupBy();
+        for(int pass = 0; pass < 3; pass++) {
+            groups.clear();
+            for(int i = 0; i < 5000; i++)
+                groups.accept("host" + (i % 100), "metric" + (i % 7), i % 10);
+            assertEquals( 700, groups.size() );
+            assertEquals( 5000, groups.rows() );
+            long count = 0;
+            for(double[] g : collect(groups).values())
+                count += (long)g[0];
+            assertEquals( 5000, count );
+            double[] g = collect(groups).get("host0#metric0");
+            // i = 0, 700, 1400, ... 4900: 8 rows, each i % 10 == 0
+            assertEquals( 8.0, g[0] );
+            assertEquals( 0.0, g[1] );
+        }
+    }
+}
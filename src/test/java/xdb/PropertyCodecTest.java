@@ -0,0 +1,94 @@
+package xdb;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.util.*;
+
+public class PropertyCodecTest
+    extends TestCase
+{
+    public PropertyCodecTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PropertyCodecTest.class );
+    }
+
+    // in ascending order, every type after the one before
+    private static final Object[] VALUES = {
+        null, false, true,
+        Long.MIN_VALUE, -1000L, -1L, 0L, 1L, 255L, 256L, Long.MAX_VALUE,
+        Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1.5, -Double.MIN_VALUE, -0.0, 0.0,
+        Double.MIN_VALUE, 1.5, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NaN,
+        "", "\0", "\0\0", "\1", "a", "a\0", "a\0b", "a\1", "ab", "b", "\u00e9", "\uffff",
+        new byte[0], new byte[]{0}, new byte[]{0, 0}, new byte[]{0, (byte)0xFF}, new byte[]{1}, new byte[]{(byte)0xFF},
+        Arrays.asList(), Arrays.asList((Object)null), Arrays.asList(-1L), Arrays.asList(1L), Arrays.asList(1L, "a"),
+        Arrays.asList(1L, "a", Arrays.asList()), Arrays.asList(1L, "b"), Arrays.asList("a"), Arrays.asList(Arrays.asList(1L))
+    };
+
+    private static int compare(byte[] a, byte[] b)
+    {
+        return PropertyCodec.compare(a, a.length, b, b.length);
+    }
+
+    private static void assertSame(Object expected, Object actual)
+    {
+        if(expected instanceof byte[])
+            assertTrue( Arrays.equals((byte[])expected, (byte[])actual) );
+        else if(expected instanceof Double)
+            assertEquals( Double.doubleToLongBits((Double)expected), Double.doubleToLongBits((Double)actual) );
+        else
+            assertEquals( expected, actual );
+    }
+
+    public void testRoundTrip()
+    {
+        for(Object v : VALUES) {
+            byte[] e = PropertyCodec.encode(v);
+            assertEquals( e.length, PropertyCodec.length(e, 0) );
+            assertSame( v, PropertyCodec.decode(e) );
+        }
+        assertEquals( 42L, PropertyCodec.decode(PropertyCodec.encode(42)) );
+        assertEquals( 0.5, PropertyCodec.decode(PropertyCodec.encode(0.5f)) );
+        assertEquals( -7L, PropertyCodec.longValue(PropertyCodec.encode(-7L)) );
+    }
+
+    public void testOrder()
+    {
+        for(int i = 1; i < VALUES.length; i++) {
+            byte[] a = PropertyCodec.encode(VALUES[i-1]);
+            byte[] b = PropertyCodec.encode(VALUES[i]);
+            assertTrue( VALUES[i-1] + " < " + VALUES[i], compare(a, b) < 0 );
+        }
+    }
+
+    public void testRandomOrder()
+    {
+        Random rnd = new Random(42);
+        for(int i = 0; i < 10000; i++) {
+            long x = rnd.nextLong() >> rnd.nextInt(64);
+            long y = rnd.nextLong() >> rnd.nextInt(64);
+            assertEquals( Long.signum(Long.compare(x, y)),
+                          Integer.signum(compare(PropertyCodec.encode(x), PropertyCodec.encode(y))) );
+            double d = (rnd.nextDouble() - 0.5) * Math.pow(10, rnd.nextInt(40) - 20);
+            double f = (rnd.nextDouble() - 0.5) * Math.pow(10, rnd.nextInt(40) - 20);
+            assertEquals( Integer.signum(Double.compare(d, f)),
+                          Integer.signum(compare(PropertyCodec.encode(d), PropertyCodec.encode(f))) );
+        }
+    }
+
+    // an encoded value followed by anything, e.g. a uid, still sorts by the value
+    public void testSelfDelimiting()
+    {
+        byte[] a = PropertyCodec.encode("a");
+        byte[] ab = PropertyCodec.encode("ab");
+        byte[] suffixed = Arrays.copyOf(a, a.length + 8);
+        Arrays.fill(suffixed, a.length, suffixed.length, (byte)0xFF);
+        assertTrue( compare(suffixed, ab) < 0 );
+        assertEquals( a.length, PropertyCodec.length(suffixed, 0) );
+    }
+}